@@ -3,6 +3,11 @@ package org.zeromq;
 import java.io.IOException;
 import java.nio.channels.Selector;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.zeromq.ZMQ.Socket;
 
@@ -245,6 +250,174 @@ public interface ZAgent
         }
     }
 
+    /**
+     * A typed lock-free channel between the two sides of a star, for one producer thread and one consumer thread.
+     * <p>
+     * The items are passed through a bounded ring, without any encoding nor socket round-trip.
+     * <br/>
+     * The consumer is woken up by the {@link Signal} given at creation,
+     * typically by sending a {@link #WAKEUP} frame on the pipe so that the poller of the star wakes up,
+     * or by unparking its thread waiting in {@link #take(long, TimeUnit)} if no signal is given.
+     * <br/>
+     * A new signal is emitted only once the consumer has {@link #acknowledge() acknowledged} the previous one,
+     * so a burst of items costs only one wake-up.
+     *
+     * @param <T> the type of the transmitted items
+     */
+    public static final class Channel<T>
+    {
+        /**
+         * The frame to send on the pipe to wake up the star when some items are available.
+         */
+        public static final String WAKEUP = "\u0000";
+
+        /**
+         * Wakes up the consumer of a channel.
+         */
+        public interface Signal
+        {
+            /**
+             * Called by the producer when the first item is available since the last acknowledgment.
+             */
+            void wake();
+        }
+
+        private final AtomicReferenceArray<T> ring;
+        private final int                     mask;
+
+        // the index of the next item to consume
+        private final AtomicLong head = new AtomicLong();
+        // the index of the next item to produce
+        private final AtomicLong tail = new AtomicLong();
+
+        // true when the consumer has been signaled but has not acknowledged it yet
+        private final AtomicBoolean signaled = new AtomicBoolean();
+        private final Signal        signal;
+
+        // the thread parked while waiting for items, when no signal is given
+        private volatile Thread waiter;
+
+        /**
+         * Creates a channel whose consumer waits for the items with {@link #take(long, TimeUnit)}.
+         *
+         * @param capacity the maximum number of pending items.
+         */
+        public Channel(int capacity)
+        {
+            this(capacity, null);
+        }
+
+        /**
+         * Creates a channel whose consumer is woken up by the given signal.
+         *
+         * @param capacity the maximum number of pending items.
+         * @param signal   the wake-up signal of the consumer. Null to unpark a consumer waiting in {@link #take(long, TimeUnit)}.
+         */
+        public Channel(int capacity, Signal signal)
+        {
+            assert (capacity > 0);
+            int size = 1;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            this.ring = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+            this.signal = signal;
+        }
+
+        /**
+         * Transmits an item. Shall be called only by the producer thread.
+         *
+         * @param item the item to transmit. Not null.
+         * @return true if transmitted, false if the channel is full.
+         */
+        public boolean offer(T item)
+        {
+            assert (item != null);
+            final long index = tail.get();
+            if (index - head.get() == ring.length()) {
+                return false;
+            }
+            ring.lazySet((int) index & mask, item);
+            tail.set(index + 1);
+            if (signaled.compareAndSet(false, true)) {
+                wake();
+            }
+            return true;
+        }
+
+        /**
+         * Retrieves the next item, without waiting. Shall be called only by the consumer thread.
+         *
+         * @return the next item, or null if none is available.
+         */
+        public T poll()
+        {
+            final long index = head.get();
+            if (index == tail.get()) {
+                return null;
+            }
+            final int slot = (int) index & mask;
+            final T item = ring.get(slot);
+            ring.lazySet(slot, null);
+            head.lazySet(index + 1);
+            return item;
+        }
+
+        /**
+         * Acknowledges the wake-up signal. Shall be called by the consumer thread before consuming the available items,
+         * so that any item transmitted afterwards triggers a new signal.
+         */
+        public void acknowledge()
+        {
+            signaled.set(false);
+        }
+
+        /**
+         * Waits for the next item. Shall be called only by the consumer thread of a channel created without signal.
+         *
+         * @param timeout the maximum time to wait.
+         * @param unit    the unit of the timeout.
+         * @return the next item, or null if none has been received before the timeout.
+         */
+        public T take(long timeout, TimeUnit unit)
+        {
+            assert (signal == null);
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            waiter = Thread.currentThread();
+            try {
+                while (true) {
+                    acknowledge();
+                    final T item = poll();
+                    if (item != null) {
+                        return item;
+                    }
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            finally {
+                waiter = null;
+            }
+        }
+
+        private void wake()
+        {
+            if (signal != null) {
+                signal.wake();
+            }
+            else {
+                final Thread thread = waiter;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+    }
+
     /**
      * Creates a selector and destroys it.
      */
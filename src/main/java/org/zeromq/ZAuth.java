@@ -6,15 +6,40 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZMQ.Socket.Mechanism;
+import org.zeromq.util.ZDigest;
 import org.zeromq.util.ZMetadata;
 
 /**
@@ -41,16 +66,38 @@ public class ZAuth implements Closeable
 
         /**
          * Callback for authorizing a connection.
+         * Called from the worker threads when {@link ZAuth#workers(int, long) workers} are used.
          * @return true if the connection is authorized, false otherwise.
          */
         boolean authorize(ZapRequest request, boolean verbose);
     }
 
-    public static class SimplePlainAuth implements Auth
+    /**
+     * Optionally implemented by the {@link Auth authenticators} reloading their credentials in background,
+     * so that the {@link ZAuth#cache(int, long, long) cached decisions} are invalidated after each reload.
+     */
+    public interface Reloadable
     {
-        private final Properties passwords = new Properties(); // PLAIN passwords, if loaded
-        private File             passwordsFile;
-        private long             passwordsModified;
+        /**
+         * Called from the actor thread, this shall not block.
+         * @return the number of times the credentials have been reloaded.
+         */
+        long reloads();
+    }
+
+    /**
+     * Authorizes PLAIN connections with a file of passwords.
+     * <p>
+     * The passwords are refreshed in background when the file changes, once it is stable for a second,
+     * so that the authorization only performs a lookup in an immutable map.
+     * The changes are detected with a {@link WatchService} if available, otherwise by polling the file every second.
+     */
+    public static class SimplePlainAuth implements Auth, Reloadable, Closeable
+    {
+        private volatile Map<String, String> passwords = Collections.emptyMap(); // PLAIN passwords, if loaded
+        private final AtomicLong             reloads   = new AtomicLong();        // refreshes of the passwords
+        private File                         passwordsFile;
+        private Watcher                      watcher;
 
         @Override
         public boolean configure(ZMsg msg, boolean verbose)
@@ -71,12 +118,12 @@ public class ZAuth implements Closeable
                                   passwordsFile.getAbsolutePath());
             }
 
-            try {
-                loadPasswords(true);
-            }
-            catch (IOException e) {
-                // Ignore the exception, just don't read the file
-            }
+            close();
+            Map<String, String> loaded = loadPasswords(passwordsFile);
+            passwords = loaded == null ? Collections.<String, String> emptyMap() : loaded;
+
+            watcher = new Watcher(passwordsFile);
+            watcher.start();
             return true;
         }
 
@@ -84,15 +131,7 @@ public class ZAuth implements Closeable
         public boolean authorize(ZapRequest request, boolean verbose)
         {
             // assert (request.username != null);
-            // Refresh the passwords map if the file changed
-            try {
-                loadPasswords(false);
-            }
-            catch (IOException e) {
-                // Ignore the exception, just don't read the file
-            }
-
-            String password = passwords.getProperty(request.username);
+            String password = passwords.get(request.username);
             if (password != null && password.equals(request.password)) {
                 if (verbose) {
                     System.out.printf("ZAuth: Allowed (PLAIN) username=%s\n", request.username);
@@ -109,40 +148,159 @@ public class ZAuth implements Closeable
             }
         }
 
-        private void loadPasswords(boolean initial) throws IOException
+        @Override
+        public long reloads()
         {
-            if (!initial) {
-                final long lastModified = passwordsFile.lastModified();
-                final long age = System.currentTimeMillis() - lastModified;
-                if (lastModified > passwordsModified && age > 1000) {
-                    // File has been modified and is stable, clear map
-                    passwords.clear();
-                }
-                else {
-                    return;
-                }
+            return reloads.get();
+        }
+
+        /**
+         * Stops the refreshing of the passwords.
+         */
+        @Override
+        public void close()
+        {
+            if (watcher != null) {
+                watcher.terminate();
+                watcher = null;
             }
+        }
 
-            passwordsModified = passwordsFile.lastModified();
-            Reader br = new BufferedReader(new FileReader(passwordsFile));
-            try {
-                passwords.load(br);
+        // reads the passwords, returns null if the file cannot be read
+        private static Map<String, String> loadPasswords(File file)
+        {
+            if (!file.exists()) {
+                // deleted or being replaced, the last loaded passwords are kept
+                return null;
+            }
+            final Properties properties = new Properties();
+            try (Reader br = new BufferedReader(new FileReader(file))) {
+                properties.load(br);
             }
             catch (IOException | IllegalArgumentException ex) {
                 // Ignore the exception, just don't read the file
+                return null;
+            }
+            final Map<String, String> loaded = new HashMap<>();
+            for (String username : properties.stringPropertyNames()) {
+                loaded.put(username, properties.getProperty(username));
+            }
+            return Collections.unmodifiableMap(loaded);
+        }
+
+        // refreshes the passwords when the file changes, outside of the authorization path
+        private final class Watcher extends Thread
+        {
+            private final File file;
+            private long       modified;
+
+            private volatile boolean running = true;
+
+            private Watcher(File file)
+            {
+                super("ZAuth-passwords-" + file.getName());
+                setDaemon(true);
+                this.file = file.getAbsoluteFile();
+                this.modified = file.lastModified();
+            }
+
+            private void terminate()
+            {
+                running = false;
+                interrupt();
+            }
+
+            @Override
+            public void run()
+            {
+                final WatchService service = watch();
+                try {
+                    boolean dirty = false;
+                    while (running) {
+                        dirty |= changed(service);
+                        if (dirty && stable()) {
+                            dirty = false;
+                            modified = file.lastModified();
+                            final Map<String, String> loaded = loadPasswords(file);
+                            if (loaded != null) {
+                                passwords = loaded;
+                                reloads.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    // terminated
+                }
+                finally {
+                    if (service != null) {
+                        try {
+                            service.close();
+                        }
+                        catch (IOException e) {
+                            // nothing to do
+                        }
+                    }
+                }
+            }
+
+            // watches the directory of the file, returns null if not possible
+            private WatchService watch()
+            {
+                final File parent = file.getParentFile();
+                if (parent == null || !parent.isDirectory()) {
+                    return null;
+                }
+                try {
+                    final Path directory = parent.toPath();
+                    final WatchService service = directory.getFileSystem().newWatchService();
+                    directory.register(
+                                       service,
+                                       StandardWatchEventKinds.ENTRY_CREATE,
+                                       StandardWatchEventKinds.ENTRY_MODIFY,
+                                       StandardWatchEventKinds.ENTRY_DELETE);
+                    return service;
+                }
+                catch (IOException | RuntimeException e) {
+                    return null;
+                }
+            }
+
+            // waits up to a second for a change of the file
+            private boolean changed(WatchService service) throws InterruptedException
+            {
+                if (service == null) {
+                    Thread.sleep(1000);
+                    return file.lastModified() != modified;
+                }
+                final WatchKey key = service.poll(1, TimeUnit.SECONDS);
+                if (key == null) {
+                    return false;
+                }
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    final Object context = event.context();
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || (context instanceof Path && file.getName().equals(context.toString()));
+                }
+                key.reset();
+                return changed;
             }
-            finally {
-                br.close();
+
+            // is the file not modified for a second?
+            private boolean stable()
+            {
+                return System.currentTimeMillis() - file.lastModified() > 1000;
             }
         }
     }
 
-    public static class SimpleCurveAuth implements Auth
+    public static class SimpleCurveAuth implements Auth, Reloadable, Closeable
     {
-        private final ZCertStore.Fingerprinter fingerprinter;
+        private final ZCertStore.Fingerprinter fingerprinter; // null when watching the certificates
 
-        private ZCertStore certStore = null;
-        private boolean    allowAny;
+        private volatile ZCertStore certStore = null; // read without locking by the reloads and the authorizations
+        private volatile boolean    allowAny;
 
         public SimpleCurveAuth()
         {
@@ -154,8 +312,16 @@ public class ZAuth implements Closeable
             this.fingerprinter = fingerprinter;
         }
 
+        /**
+         * @param watch true to watch the certificates in background instead of checking them at each authorization.
+         */
+        public SimpleCurveAuth(boolean watch)
+        {
+            this(watch ? null : new ZCertStore.Hasher());
+        }
+
         @Override
-        public boolean configure(ZMsg configuration, boolean verbose)
+        public synchronized boolean configure(ZMsg configuration, boolean verbose)
         {
             //  If location is CURVE_ALLOW_ANY, allow all clients. Otherwise
             //  treat location as a directory that holds the certificates.
@@ -170,11 +336,31 @@ public class ZAuth implements Closeable
                 if (verbose) {
                     System.out.printf("ZAuth: Using %s as certificates directory%n", location);
                 }
-                certStore = new ZCertStore(location, fingerprinter);
+                close();
+                certStore = fingerprinter == null ? new ZCertStore(location, true)
+                        : new ZCertStore(location, fingerprinter);
             }
             return true;
         }
 
+        @Override
+        public synchronized void close()
+        {
+            if (certStore != null) {
+                certStore.close();
+            }
+        }
+
+        /**
+         * A store checking the certificates at each authorization is reloaded only when a decision is not cached.
+         */
+        @Override
+        public long reloads()
+        {
+            final ZCertStore store = certStore;
+            return store == null ? 0 : store.reloads();
+        }
+
         @Override
         public boolean authorize(ZapRequest request, boolean verbose)
         {
@@ -185,20 +371,35 @@ public class ZAuth implements Closeable
                 return true;
             }
             else {
-                if (certStore != null) {
-                    if (certStore.containsPublicKey(request.clientKey)) {
+                final ZCertStore store = certStore;
+                if (store != null) {
+                    final boolean found;
+                    final ZMetadata metadata;
+                    if (fingerprinter == null) {
+                        // the watched certificates are looked up without locking
+                        found = store.containsPublicKey(request.clientPublicKey);
+                        metadata = found ? store.getMetadata(request.clientPublicKey) : null;
+                    }
+                    else {
+                        // the checked certificates may be reloaded during the lookup
+                        synchronized (store) {
+                            found = store.containsPublicKey(request.clientPublicKey);
+                            metadata = found ? store.getMetadata(request.clientPublicKey) : null;
+                        }
+                    }
+                    if (found) {
                         // login allowed
                         if (verbose) {
-                            System.out.printf("ZAuth: Allowed (CURVE) client_key=%s\n", request.clientKey);
+                            System.out.printf("ZAuth: Allowed (CURVE) client_key=%s\n", request.clientKey());
                         }
-                        request.userId = request.clientKey;
-                        request.metadata = certStore.getMetadata(request.clientKey);
+                        request.userId = request.clientKey();
+                        request.metadata = metadata;
                         return true;
                     }
                     else {
                         // login not allowed. couldn't find certificate
                         if (verbose) {
-                            System.out.printf("ZAuth: Denied (CURVE) client_key=%s\n", request.clientKey);
+                            System.out.printf("ZAuth: Denied (CURVE) client_key=%s\n", request.clientKey());
                         }
                         return false;
                     }
@@ -312,7 +513,8 @@ public class ZAuth implements Closeable
      */
     public static class ZapRequest
     {
-        private final Socket handler; //  socket we're talking to
+        private final Socket handler;  //  socket we're talking to
+        private final ZMsg   envelope; //  routing frames of the request, up to the empty delimiter
 
         public final String version;   //  Version number, must be "1.0"
         public final String sequence;  //  Sequence number of request
@@ -322,15 +524,27 @@ public class ZAuth implements Closeable
         public final String mechanism; //  Security mechanism
         public final String username;  //  PLAIN user name
         public final String password;  //  PLAIN password, in clear text
-        public final String clientKey; //  CURVE client public key in ASCII
+        public final byte[] clientPublicKey; //  CURVE client public key, as received
         public final String principal; //  GSSAPI principal
         public String       userId;    //  User-Id to return in the ZAP Response
         public ZMetadata    metadata;  // metadata to eventually return
 
+        private String clientKey; //  CURVE client public key in ASCII, encoded on demand
+
         private ZapRequest(Socket handler, ZMsg request)
         {
             //  Store handler socket so we can send a reply easily
             this.handler = handler;
+            //  Keep the envelope to route the reply back to the requesting session
+            envelope = new ZMsg();
+            ZFrame delimiter = request.pop();
+            while (delimiter != null && delimiter.hasData()) {
+                envelope.add(delimiter);
+                delimiter = request.pop();
+            }
+            if (delimiter != null) {
+                envelope.add(delimiter);
+            }
             //  Get all standard frames off the handler socket
             version = request.popString();
             sequence = request.popString();
@@ -346,32 +560,68 @@ public class ZAuth implements Closeable
             if (Mechanism.PLAIN.name().equals(mechanism)) {
                 username = request.popString();
                 password = request.popString();
-                clientKey = null;
+                clientPublicKey = null;
                 principal = null;
             }
             else if (Mechanism.CURVE.name().equals(mechanism)) {
+                // keep the raw key, the lookups in the certificates do not need its z85 form
                 ZFrame frame = request.pop();
-                byte[] clientPublicKey = frame.getData();
                 username = null;
                 password = null;
-                clientKey = ZMQ.Curve.z85Encode(clientPublicKey);
+                clientPublicKey = frame.getData();
                 principal = null;
             }
             else if (Mechanism.GSSAPI.name().equals(mechanism)) {
                 // TOD handle GSSAPI as well
                 username = null;
                 password = null;
-                clientKey = null;
+                clientPublicKey = null;
                 principal = request.popString();
             }
             else {
                 username = null;
                 password = null;
-                clientKey = null;
+                clientPublicKey = null;
                 principal = null;
             }
         }
 
+        // copies the request, for an authorization performed by a worker thread
+        private ZapRequest(ZapRequest request)
+        {
+            handler = request.handler;
+            envelope = request.envelope;
+            version = request.version;
+            sequence = request.sequence;
+            domain = request.domain;
+            address = request.address;
+            identity = request.identity;
+            mechanism = request.mechanism;
+            username = request.username;
+            password = request.password;
+            clientPublicKey = request.clientPublicKey;
+            principal = request.principal;
+            userId = request.userId;
+            metadata = request.metadata;
+            clientKey = request.clientKey;
+        }
+
+        /**
+         * Encodes the CURVE client public key on demand.
+         * <p>
+         * API change: this method replaces the former public {@code clientKey} field,
+         * authenticators reading that field have to call this method instead,
+         * or to use the raw {@link #clientPublicKey} for their lookups.
+         * @return the CURVE client public key in ASCII, or null if the mechanism is not CURVE.
+         */
+        public String clientKey()
+        {
+            if (clientKey == null && clientPublicKey != null) {
+                clientKey = ZMQ.Curve.z85Encode(clientPublicKey);
+            }
+            return clientKey;
+        }
+
         private static ZapRequest recvRequest(Socket handler, boolean wait)
         {
             ZMsg request = ZMsg.recvMsg(handler, wait);
@@ -396,6 +646,10 @@ public class ZAuth implements Closeable
             ZapReply reply = new ZapReply(ZAP_VERSION, sequence, statusCode, statusText, userId, metadata);
             ZMsg msg = reply.msg();
             boolean destroy = replies == null;
+            for (ZFrame frame : envelope) {
+                frame.sendAndKeep(handler, ZFrame.MORE);
+            }
+            envelope.destroy();
             msg.send(handler, destroy);
             if (replies != null) {
                 // let's add other fields for convenience of listener
@@ -406,6 +660,402 @@ public class ZAuth implements Closeable
         }
     }
 
+    /**
+     * A bounded cache of the authorization decisions, keyed by the mechanism and the identity of the client
+     * (domain, address, and username with a digest of the password, or public key).
+     * <p>
+     * The positive and negative decisions expire after their own time-to-live,
+     * and the whole cache is invalidated by the {@link ZAuth#allow(String) allow}, {@link ZAuth#deny(String) deny}
+     * and configuration commands, and when a {@link Reloadable} authenticator reloads its credentials.
+     * <br/>
+     * Used by the actor only, its counters can be read at any time from any thread.
+     */
+    public static final class Cache
+    {
+        // a cached decision
+        private static final class Decision
+        {
+            private final boolean   allowed;
+            private final String    userId;
+            private final ZMetadata metadata;
+            private final long      expiry;
+
+            private Decision(boolean allowed, String userId, ZMetadata metadata, long expiry)
+            {
+                this.allowed = allowed;
+                this.userId = userId;
+                this.metadata = metadata;
+                this.expiry = expiry;
+            }
+        }
+
+        private final AtomicLong hits   = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        private int  capacity;
+        private long positive; // time-to-live in nanoseconds of the allowed decisions
+        private long negative; // time-to-live in nanoseconds of the denied decisions
+        private long reloads;  // the reloads of the authenticators when last checked
+
+        private final Map<String, Decision> decisions = new LinkedHashMap<String, Decision>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+
+        /**
+         * @return the number of authorizations decided by the cache.
+         */
+        public long hits()
+        {
+            return hits.get();
+        }
+
+        /**
+         * @return the number of authorizations not found in the cache, when enabled.
+         */
+        public long misses()
+        {
+            return misses.get();
+        }
+
+        private void configure(int capacity, long positive, long negative)
+        {
+            this.capacity = capacity;
+            this.positive = TimeUnit.MILLISECONDS.toNanos(positive);
+            this.negative = TimeUnit.MILLISECONDS.toNanos(negative);
+            decisions.clear();
+        }
+
+        private void invalidate()
+        {
+            decisions.clear();
+        }
+
+        // invalidates the decisions if the credentials of an authenticator have been reloaded since the last check
+        private void check(Collection<Auth> auths)
+        {
+            long sum = 0;
+            for (Auth auth : auths) {
+                if (auth instanceof Reloadable) {
+                    sum += ((Reloadable) auth).reloads();
+                }
+            }
+            if (sum != reloads) {
+                reloads = sum;
+                decisions.clear();
+            }
+        }
+
+        // computes the key of the request, null if not cacheable
+        private String key(ZapRequest request)
+        {
+            if (capacity == 0) {
+                return null;
+            }
+            final StringBuilder key = new StringBuilder(request.mechanism).append('\n').append(request.domain)
+                    .append('\n').append(request.address).append('\n');
+            if (Mechanism.NULL.name().equals(request.mechanism)) {
+                return key.toString();
+            }
+            if (Mechanism.PLAIN.name().equals(request.mechanism)) {
+                if (request.username == null || request.password == null) {
+                    return null;
+                }
+                final String digest = new ZDigest().update(request.password.getBytes(ZMQ.CHARSET)).string();
+                return key.append(request.username).append('\n').append(digest).toString();
+            }
+            if (Mechanism.CURVE.name().equals(request.mechanism)) {
+                // the raw key as is, one char per byte
+                return request.clientPublicKey == null ? null
+                        : key.append(new String(request.clientPublicKey, StandardCharsets.ISO_8859_1)).toString();
+            }
+            return null;
+        }
+
+        // applies the cached decision to the request, returns null if none
+        private Boolean get(String key, ZapRequest request)
+        {
+            final Decision decision = decisions.get(key);
+            if (decision == null || decision.expiry - System.nanoTime() < 0) {
+                if (decision != null) {
+                    decisions.remove(key);
+                }
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            request.userId = decision.userId;
+            request.metadata = decision.metadata;
+            return decision.allowed;
+        }
+
+        private void put(String key, boolean allowed, ZapRequest request)
+        {
+            final long ttl = allowed ? positive : negative;
+            if (ttl > 0) {
+                decisions.put(key, new Decision(allowed, request.userId, request.metadata, System.nanoTime() + ttl));
+            }
+        }
+    }
+
+    /**
+     * A set of IPv4 and IPv6 addresses and CIDR ranges, like "192.168.0.0/16" or "fd00::/8".
+     * <p>
+     * The ranges are stored in a binary radix trie over the bytes of the addresses,
+     * and the addresses are matched without creating any {@link java.net.InetAddress},
+     * in a time proportional to the length of the prefixes.
+     * IPv4-mapped IPv6 addresses are matched as IPv4 ones.
+     * The entries that are not IP addresses are matched by strict equality.
+     * <br/>
+     * Not thread-safe.
+     */
+    public static final class Subnets
+    {
+        // a node of the trie, one level per bit
+        private static final class Node
+        {
+            private Node    zero;
+            private Node    one;
+            private boolean terminal; // a range ends here
+        }
+
+        private final Node        ipv4   = new Node();
+        private final Node        ipv6   = new Node();
+        private final Set<String> others = new HashSet<>();
+        private final byte[]      buffer = new byte[16];
+        private boolean           empty  = true;
+
+        /**
+         * Adds an address or a range of addresses.
+         *
+         * @param cidr the address, or the range in CIDR notation.
+         */
+        public void add(String cidr)
+        {
+            empty = false;
+            final int slash = cidr.indexOf('/');
+            final String address = slash < 0 ? cidr : cidr.substring(0, slash);
+            final byte[] bytes = new byte[16];
+            final int length = parse(address, bytes);
+            if (length < 0) {
+                others.add(cidr);
+                return;
+            }
+            int prefix = length * 8;
+            if (slash >= 0) {
+                try {
+                    prefix = Integer.parseInt(cidr.substring(slash + 1));
+                }
+                catch (NumberFormatException e) {
+                    prefix = -1;
+                }
+                if (prefix < 0 || prefix > length * 8) {
+                    others.add(cidr);
+                    return;
+                }
+            }
+            Node node = length == 4 ? ipv4 : ipv6;
+            int offset = 0;
+            if (length == 16 && prefix >= 96 && mapped(bytes)) {
+                // matched as IPv4 addresses
+                node = ipv4;
+                offset = 12;
+                prefix -= 96;
+            }
+            for (int depth = 0; depth < prefix; ++depth) {
+                if (bit(bytes, offset, depth)) {
+                    if (node.one == null) {
+                        node.one = new Node();
+                    }
+                    node = node.one;
+                }
+                else {
+                    if (node.zero == null) {
+                        node.zero = new Node();
+                    }
+                    node = node.zero;
+                }
+            }
+            node.terminal = true;
+        }
+
+        /**
+         * @return true if no address has been added.
+         */
+        public boolean isEmpty()
+        {
+            return empty;
+        }
+
+        /**
+         * Checks if an address belongs to one of the added ranges.
+         *
+         * @param address the address to check.
+         * @return true if the address matches.
+         */
+        public boolean contains(String address)
+        {
+            if (address == null) {
+                return false;
+            }
+            final int length = parse(address, buffer);
+            if (length == 4) {
+                return match(ipv4, buffer, 0, 32);
+            }
+            if (length == 16) {
+                if (mapped(buffer)) {
+                    return match(ipv4, buffer, 12, 32);
+                }
+                return match(ipv6, buffer, 0, 128);
+            }
+            return others.contains(address);
+        }
+
+        private static boolean match(Node root, byte[] bytes, int offset, int bits)
+        {
+            Node node = root;
+            for (int depth = 0; depth < bits; ++depth) {
+                if (node.terminal) {
+                    return true;
+                }
+                node = bit(bytes, offset, depth) ? node.one : node.zero;
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.terminal;
+        }
+
+        private static boolean bit(byte[] bytes, int offset, int index)
+        {
+            return (bytes[offset + (index >> 3)] & (0x80 >> (index & 7))) != 0;
+        }
+
+        // is it an IPv4-mapped IPv6 address?
+        private static boolean mapped(byte[] bytes)
+        {
+            for (int index = 0; index < 10; ++index) {
+                if (bytes[index] != 0) {
+                    return false;
+                }
+            }
+            return bytes[10] == (byte) 0xff && bytes[11] == (byte) 0xff;
+        }
+
+        // parses an address in the given bytes, returns its length in bytes or -1 if not an IP address
+        private static int parse(String address, byte[] bytes)
+        {
+            int from = 0;
+            int to = address.length();
+            if (to > 1 && address.charAt(0) == '[' && address.charAt(to - 1) == ']') {
+                ++from;
+                --to;
+            }
+            final int zone = address.indexOf('%', from);
+            if (zone >= 0 && zone < to) {
+                to = zone;
+            }
+            if (address.indexOf(':', from) < 0) {
+                return parse4(address, from, to, bytes, 0) ? 4 : -1;
+            }
+            return parse6(address, from, to, bytes) ? 16 : -1;
+        }
+
+        private static boolean parse4(String address, int from, int to, byte[] bytes, int offset)
+        {
+            int index = from;
+            for (int part = 0; part < 4; ++part) {
+                int value = 0;
+                int digits = 0;
+                while (index < to && Character.isDigit(address.charAt(index))) {
+                    value = value * 10 + address.charAt(index) - '0';
+                    ++digits;
+                    ++index;
+                }
+                if (digits == 0 || digits > 3 || value > 255) {
+                    return false;
+                }
+                bytes[offset + part] = (byte) value;
+                if (part < 3) {
+                    if (index == to || address.charAt(index) != '.') {
+                        return false;
+                    }
+                    ++index;
+                }
+            }
+            return index == to;
+        }
+
+        private static boolean parse6(String address, int from, int to, byte[] bytes)
+        {
+            int count = 0; // the number of parsed groups
+            int gap = -1; // the group where '::' stands
+            int index = from;
+            if (to - from >= 2 && address.charAt(from) == ':' && address.charAt(from + 1) == ':') {
+                gap = 0;
+                index += 2;
+            }
+            while (index < to) {
+                final int start = index;
+                int value = 0;
+                int digits = 0;
+                while (index < to && Character.digit(address.charAt(index), 16) >= 0) {
+                    value = value * 16 + Character.digit(address.charAt(index), 16);
+                    ++digits;
+                    ++index;
+                }
+                if (index < to && address.charAt(index) == '.') {
+                    // embedded IPv4 address
+                    if (count > 6 || !parse4(address, start, to, bytes, count * 2)) {
+                        return false;
+                    }
+                    count += 2;
+                    break;
+                }
+                if (digits == 0 || digits > 4 || count == 8) {
+                    return false;
+                }
+                bytes[count * 2] = (byte) (value >> 8);
+                bytes[count * 2 + 1] = (byte) value;
+                ++count;
+                if (index == to) {
+                    break;
+                }
+                if (address.charAt(index) != ':') {
+                    return false;
+                }
+                ++index;
+                if (index < to && address.charAt(index) == ':') {
+                    if (gap >= 0) {
+                        return false;
+                    }
+                    gap = count;
+                    ++index;
+                }
+                else if (index == to) {
+                    return false;
+                }
+            }
+            if (gap < 0) {
+                return count == 8;
+            }
+            if (count == 8) {
+                return false;
+            }
+            // move the groups after the gap to the end, and fill the gap with zeros
+            final int tail = (count - gap) * 2;
+            System.arraycopy(bytes, gap * 2, bytes, 16 - tail, tail);
+            Arrays.fill(bytes, gap * 2, 16 - tail, (byte) 0);
+            return true;
+        }
+    }
+
     public static final String CURVE_ALLOW_ANY = "*";
 
     private static final String VERBOSE   = "VERBOSE";
@@ -413,11 +1063,15 @@ public class ZAuth implements Closeable
     private static final String ALLOW     = "ALLOW";
     private static final String DENY      = "DENY";
     private static final String TERMINATE = "TERMINATE";
+    private static final String CACHE     = "CACHE";
+    private static final String FLUSH     = "FLUSH";
+    private static final String WORKERS   = "WORKERS";
 
     private final ZAgent     agent;
     private final ZStar.Exit exit;
     private final ZAgent     replies;
     private boolean          repliesEnabled; // are replies enabled?
+    private final Cache      cache = new Cache();
 
     /**
      * Install authentication for the specified context. Note that until you add
@@ -462,7 +1116,7 @@ public class ZAuth implements Closeable
         assert (ctx != null); // works only for connections within the same context
         assert (actorName != null);
         assert (auths != null);
-        final AuthActor actor = new AuthActor(actorName, auths);
+        final AuthActor actor = new AuthActor(actorName, auths, cache);
         final ZActor zactor = new ZActor(ctx, null, actor, UUID.randomUUID().toString());
         agent = zactor.agent();
         exit = zactor.exit();
@@ -486,7 +1140,8 @@ public class ZAuth implements Closeable
     }
 
     /**
-     * Allow (whitelist) a single IP address. For NULL, all clients from this
+     * Allow (whitelist) a single IP address, or a range of IPv4 or IPv6 addresses
+     * in CIDR notation like "10.0.0.0/8". For NULL, all clients from this
      * address will be accepted. For PLAIN and CURVE, they will be allowed to
      * continue with authentication. You can call this method multiple times to
      * whitelist multiple IP addresses. If you whitelist a single address, any
@@ -499,7 +1154,8 @@ public class ZAuth implements Closeable
     }
 
     /**
-     * Deny (blacklist) a single IP address. For all security mechanisms, this
+     * Deny (blacklist) a single IP address, or a range of IPv4 or IPv6 addresses
+     * in CIDR notation like "10.0.0.0/8". For all security mechanisms, this
      * rejects the connection without any further authentication. Use either a
      * whitelist, or a blacklist, not not both. If you define both a whitelist
      * and a blacklist, only the whitelist takes effect.
@@ -533,6 +1189,57 @@ public class ZAuth implements Closeable
         return send(Mechanism.CURVE.name(), location);
     }
 
+    /**
+     * Caches the authorization decisions.
+     * The cache is invalidated when the passwords or the certificates watched in background are reloaded.
+     *
+     * @param capacity  the maximum number of cached decisions, 0 to disable the cache.
+     * @param positive  the time-to-live in milliseconds of the allowed decisions, 0 to not cache them.
+     * @param negative  the time-to-live in milliseconds of the denied decisions, 0 to not cache them.
+     */
+    public ZAuth cache(int capacity, long positive, long negative)
+    {
+        assert (capacity >= 0);
+        return send(CACHE, Integer.toString(capacity), Long.toString(positive), Long.toString(negative));
+    }
+
+    /**
+     * Invalidates the cached authorization decisions,
+     * for example after an external change of the passwords or of the certificates.
+     */
+    public ZAuth invalidate()
+    {
+        return send(FLUSH);
+    }
+
+    /**
+     * Authorizes the connections in a pool of worker threads instead of the actor thread,
+     * so that a slow {@link Auth} does not serialize every handshake of the process.
+     * <p>
+     * The replies are routed back to the requesting session with the sequence number of its request.
+     * A request still not authorized after the timeout is denied.
+     * The address filtering and the cached decisions are still performed by the actor.
+     * <br/>
+     * When workers are used, the {@link Auth authenticators} have to be thread-safe.
+     *
+     * @param concurrency   the maximum number of requests authorized at the same time, 0 to authorize on the actor thread.
+     * @param timeout       the time in milliseconds after which a pending request is denied, 0 for no limit.
+     */
+    public ZAuth workers(int concurrency, long timeout)
+    {
+        assert (concurrency >= 0);
+        assert (timeout >= 0);
+        return send(WORKERS, Integer.toString(concurrency), Long.toString(timeout));
+    }
+
+    /**
+     * @return the cache of the authorization decisions, with its counters.
+     */
+    public Cache cache()
+    {
+        return cache;
+    }
+
     public ZAuth replies(boolean enable)
     {
         repliesEnabled = enable;
@@ -609,6 +1316,206 @@ public class ZAuth implements Closeable
         return this;
     }
 
+    /**
+     * A pool of threads authorizing the ZAP requests on behalf of the actor.
+     * <p>
+     * The workers signal their completions through a pipe polled by the actor, which alone sends the replies.
+     */
+    private static final class Workers implements ZPoller.EventsHandler
+    {
+        // a request being authorized
+        private static final class Pending implements Runnable
+        {
+            private final Workers    workers;
+            private final ZapRequest request;    // replied by the actor
+            private final ZapRequest authorized; // filled by the worker, left behind on timeout
+            private final Auth       auth;
+            private final String     key;        // the key of the decision in the cache, or null
+            private final long       deadline;   // in nanoseconds
+            private final boolean    verbose;
+            private volatile boolean allowed;    // the decision, published with the completion
+            private Future<?>        future;     // accessed by the actor only
+            private boolean          replied;    // accessed by the actor only
+
+            private Pending(Workers workers, ZapRequest request, Auth auth, String key, boolean verbose)
+            {
+                this.workers = workers;
+                this.request = request;
+                this.authorized = new ZapRequest(request);
+                this.auth = auth;
+                this.key = key;
+                this.verbose = verbose;
+                this.deadline = System.nanoTime() + workers.timeout;
+            }
+
+            @Override
+            public void run()
+            {
+                boolean result = false;
+                try {
+                    result = auth.authorize(authorized, verbose);
+                }
+                catch (RuntimeException e) {
+                    System.out.printf("ZAuth: Authorization in error %s%n", e);
+                }
+                allowed = result;
+                workers.completed(this);
+            }
+        }
+
+        private final int                 concurrency; // maximum number of requests in flight
+        private final long                timeout;     // in nanoseconds, 0 if unlimited
+        private final ThreadPoolExecutor  threads;
+        private final Pipe                wakeup;      // signals completions to the actor
+        private final Queue<Pending>      completed = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<Pending> pending   = new ArrayDeque<>(); // by order of arrival, hence of deadline
+        private final ByteBuffer          drain     = ByteBuffer.allocate(64);
+        private int                       inflight;    // number of requests not replied yet
+
+        private Workers(final int concurrency, long timeout) throws IOException
+        {
+            this.concurrency = concurrency;
+            this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+            this.wakeup = Pipe.open();
+            wakeup.source().configureBlocking(false);
+            wakeup.sink().configureBlocking(false);
+            this.threads = new ThreadPoolExecutor(
+                                                  concurrency,
+                                                  concurrency,
+                                                  0,
+                                                  TimeUnit.MILLISECONDS,
+                                                  new LinkedBlockingQueue<Runnable>(),
+                                                  new ThreadFactory()
+                                                  {
+                                                      private final AtomicInteger index = new AtomicInteger();
+
+                                                      @Override
+                                                      public Thread newThread(Runnable runnable)
+                                                      {
+                                                          Thread thread = new Thread(
+                                                                  runnable,
+                                                                  "zauth-worker-" + index.incrementAndGet());
+                                                          thread.setDaemon(true);
+                                                          return thread;
+                                                      }
+                                                  });
+        }
+
+        private SelectableChannel channel()
+        {
+            return wakeup.source();
+        }
+
+        private boolean full()
+        {
+            return inflight >= concurrency;
+        }
+
+        // called by the actor
+        private void submit(ZapRequest request, Auth auth, String key, boolean verbose)
+        {
+            Pending authorization = new Pending(this, request, auth, key, verbose);
+            pending.add(authorization);
+            ++inflight;
+            authorization.future = threads.submit(authorization);
+        }
+
+        // called by the workers
+        private void completed(Pending authorization)
+        {
+            completed.add(authorization);
+            try {
+                // a full pipe already holds a wake-up for the actor
+                wakeup.sink().write(ByteBuffer.wrap(new byte[1]));
+            }
+            catch (IOException e) {
+                // closed, the actor is leaving
+            }
+        }
+
+        // called by the actor, returns the next completed authorization to reply to
+        private Pending next()
+        {
+            Pending authorization;
+            while ((authorization = completed.poll()) != null) {
+                if (!authorization.replied) {
+                    authorization.replied = true;
+                    --inflight;
+                    // the fields set by the authenticator, published with the completion
+                    authorization.request.userId = authorization.authorized.userId;
+                    authorization.request.metadata = authorization.authorized.metadata;
+                    return authorization;
+                }
+            }
+            return null;
+        }
+
+        // called by the actor, returns the next authorization timed out
+        private Pending expired(long now)
+        {
+            Pending head;
+            while ((head = pending.peek()) != null) {
+                if (head.replied) {
+                    pending.poll();
+                }
+                else if (timeout > 0 && now - head.deadline >= 0) {
+                    pending.poll();
+                    head.replied = true;
+                    --inflight;
+                    head.future.cancel(true);
+                    return head;
+                }
+                else {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        // called by the actor, returns the delay in milliseconds before the next timeout, or -1 if none
+        private long delay(long now)
+        {
+            final Pending head = pending.peek();
+            if (head == null || timeout == 0) {
+                return -1;
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(head.deadline - now + 999999));
+        }
+
+        @Override
+        public boolean events(Socket socket, int events)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean events(SelectableChannel channel, int events)
+        {
+            try {
+                while (wakeup.source().read(drain) > 0) {
+                    drain.clear();
+                }
+                drain.clear();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+
+        private void close()
+        {
+            threads.shutdownNow();
+            try {
+                wakeup.sink().close();
+                wakeup.source().close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * AuthActor is the backend actor which we talk to over a pipe. This lets
      * the actor do work asynchronously in the background while our application
@@ -621,21 +1528,26 @@ public class ZAuth implements Closeable
 
         private final String actorName;
 
-        private final Properties        whitelist = new Properties(); // whitelisted addresses
-        private final Properties        blacklist = new Properties(); // blacklisted addresses
+        private final Subnets           whitelist = new Subnets(); // whitelisted addresses
+        private final Subnets           blacklist = new Subnets(); // blacklisted addresses
         private final Map<String, Auth> auths     = new HashMap<>();
 
         private final String repliesAddress; // address of replies pipe AND safeguard lock for connected agent
         private boolean      repliesEnabled; // are replies enabled?
         private Socket       replies;        // replies pipe
         private boolean      verbose;        // trace behavior
+        private final Cache  cache;          // the cached decisions
+        private Socket       handler;        // ZAP handler
+        private boolean      accepting;      // is the handler polled for requests?
+        private Workers      workers;        // the authorizing threads, or null to authorize inline
 
-        private AuthActor(String actorName, Map<String, Auth> auths)
+        private AuthActor(String actorName, Map<String, Auth> auths, Cache cache)
         {
             assert (auths != null);
             assert (actorName != null);
             this.actorName = actorName;
             this.auths.putAll(auths);
+            this.cache = cache;
             this.repliesAddress = "inproc://zauth-replies-" + UUID.randomUUID().toString();
         }
 
@@ -660,8 +1572,8 @@ public class ZAuth implements Closeable
             replies = ctx.createSocket(ZMQ.PAIR);
             assert (replies != null);
 
-            //create ZAP handler and get ready for requests
-            Socket handler = ctx.createSocket(ZMQ.REP);
+            //create ZAP handler and get ready for requests, routing the replies to the requesting sessions
+            handler = ctx.createSocket(ZMQ.ROUTER);
             assert (handler != null);
             return Arrays.asList(handler, replies);
         }
@@ -673,11 +1585,11 @@ public class ZAuth implements Closeable
             try {
                 rc = replies.bind(repliesAddress);
                 assert (rc);
-                Socket handler = sockets.get(0);
                 rc = handler.bind("inproc://zeromq.zap.01");
                 assert (rc);
                 rc = poller.register(handler, ZPoller.POLLIN);
                 assert (rc);
+                accepting = true;
                 rc = pipe.send(OK);
                 assert (rc);
             }
@@ -689,6 +1601,16 @@ public class ZAuth implements Closeable
             }
         }
 
+        @Override
+        public long looping(Socket pipe, ZPoller poller)
+        {
+            if (workers == null) {
+                // blocking loop
+                return -1;
+            }
+            return settle(poller);
+        }
+
         @Override
         public boolean backstage(Socket pipe, ZPoller poller, int events)
         {
@@ -705,7 +1627,8 @@ public class ZAuth implements Closeable
                 if (verbose) {
                     System.out.printf("ZAuth: Whitelisting IP address=%s\n", address);
                 }
-                whitelist.put(address, OK);
+                whitelist.add(address);
+                cache.invalidate();
                 rc = pipe.send(OK);
             }
             else if (DENY.equals(command)) {
@@ -713,9 +1636,54 @@ public class ZAuth implements Closeable
                 if (verbose) {
                     System.out.printf("ZAuth: Blacklisting IP address=%s\n", address);
                 }
-                blacklist.put(address, OK);
+                blacklist.add(address);
+                cache.invalidate();
                 rc = pipe.send(OK);
             }
+            else if (CACHE.equals(command)) {
+                final int capacity = Integer.parseInt(msg.popString());
+                final long positive = Long.parseLong(msg.popString());
+                final long negative = Long.parseLong(msg.popString());
+                if (verbose) {
+                    System.out.printf(
+                                      "ZAuth: Caching %d decisions for %d ms if allowed, %d ms if denied%n",
+                                      capacity,
+                                      positive,
+                                      negative);
+                }
+                cache.configure(capacity, positive, negative);
+                rc = pipe.send(OK);
+            }
+            else if (FLUSH.equals(command)) {
+                cache.invalidate();
+                rc = pipe.send(OK);
+            }
+            else if (WORKERS.equals(command)) {
+                final int concurrency = Integer.parseInt(msg.popString());
+                final long timeout = Long.parseLong(msg.popString());
+                if (verbose) {
+                    System.out.printf(
+                                      "ZAuth: Authorizing with %d workers and a timeout of %d ms%n",
+                                      concurrency,
+                                      timeout);
+                }
+                retire(poller);
+                if (concurrency > 0) {
+                    try {
+                        workers = new Workers(concurrency, timeout);
+                        rc = poller.register(workers.channel(), workers, ZPoller.IN);
+                        assert (rc);
+                        rc = pipe.send(OK);
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                        rc = pipe.send("ERROR");
+                    }
+                }
+                else {
+                    rc = pipe.send(OK);
+                }
+            }
             else if (VERBOSE.equals(command)) {
                 String verboseStr = msg.popString();
                 this.verbose = Boolean.parseBoolean(verboseStr);
@@ -734,9 +1702,20 @@ public class ZAuth implements Closeable
                 rc = pipe.send(OK);
             }
             else if (TERMINATE.equals(command)) {
+                retire(poller);
                 if (repliesEnabled) {
                     replies.send(repliesAddress); // lock replies agent
                 }
+                for (Auth auth : auths.values()) {
+                    if (auth instanceof Closeable) {
+                        try {
+                            ((Closeable) auth).close();
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
                 if (verbose) {
                     System.out.println("ZAuth: Terminated");
                 }
@@ -746,6 +1725,7 @@ public class ZAuth implements Closeable
             else {
                 final Auth authenticator = auths.get(command);
                 if (authenticator != null) {
+                    cache.invalidate();
                     if (authenticator.configure(msg, verbose)) {
                         rc = pipe.send(OK);
                     }
@@ -774,12 +1754,29 @@ public class ZAuth implements Closeable
                 return false;
             }
 
+            // is the decision already known?
+            final String key = cache.key(request);
+            if (key != null) {
+                cache.check(auths.values());
+                final Boolean cached = cache.get(key, request);
+                if (cached != null) {
+                    if (verbose) {
+                        System.out.printf(
+                                          "ZAuth: %s (cache) address = %s\n",
+                                          cached ? "Allowed" : "Denied",
+                                          request.address);
+                    }
+                    reply(request, cached);
+                    return true;
+                }
+            }
+
             //is the address explicitly whitelisted or blacklisted?
             boolean allowed = false;
             boolean denied = false;
 
             if (!whitelist.isEmpty()) {
-                if (whitelist.containsKey(request.address)) {
+                if (whitelist.contains(request.address)) {
                     allowed = true;
                     if (verbose) {
                         System.out.printf("ZAuth: Passed (whitelist) address = %s\n", request.address);
@@ -793,7 +1790,7 @@ public class ZAuth implements Closeable
                 }
             }
             else if (!blacklist.isEmpty()) {
-                if (blacklist.containsKey(request.address)) {
+                if (blacklist.contains(request.address)) {
                     denied = true;
                     if (verbose) {
                         System.out.printf("ZAuth: Denied (blacklist) address = %s\n", request.address);
@@ -814,11 +1811,76 @@ public class ZAuth implements Closeable
                     System.out.printf("ZAuth E: Skipping unhandled mechanism %s%n", request.mechanism);
                     return false;
                 }
+                else if (workers != null) {
+                    // the reply will be sent when the authorization is completed
+                    workers.submit(request, auth, key, verbose);
+                    if (workers.full()) {
+                        // pause the requests until a worker is available
+                        poller.unregister(handler);
+                        accepting = false;
+                    }
+                    return true;
+                }
                 else {
                     allowed = auth.authorize(request, verbose);
                 }
             }
 
+            if (key != null) {
+                cache.put(key, allowed, request);
+            }
+            reply(request, allowed);
+            return true;
+        }
+
+        // replies to the completed and timed out authorizations,
+        // returns the delay in milliseconds before the next timeout
+        private long settle(ZPoller poller)
+        {
+            Workers.Pending authorization;
+            while ((authorization = workers.next()) != null) {
+                final boolean allowed = authorization.allowed;
+                if (authorization.key != null) {
+                    cache.put(authorization.key, allowed, authorization.request);
+                }
+                reply(authorization.request, allowed);
+            }
+            final long now = System.nanoTime();
+            while ((authorization = workers.expired(now)) != null) {
+                if (verbose) {
+                    System.out.printf("ZAuth: Denied (timeout) address = %s\n", authorization.request.address);
+                }
+                reply(authorization.request, false);
+            }
+            if (!accepting && !workers.full()) {
+                accepting = poller.register(handler, ZPoller.POLLIN);
+            }
+            return workers.delay(now);
+        }
+
+        // stops the workers, denying the pending authorizations
+        private void retire(ZPoller poller)
+        {
+            if (workers == null) {
+                return;
+            }
+            settle(poller);
+            for (Workers.Pending authorization : workers.pending) {
+                if (!authorization.replied) {
+                    authorization.replied = true;
+                    reply(authorization.request, false);
+                }
+            }
+            poller.unregister(workers.channel());
+            workers.close();
+            workers = null;
+            if (!accepting) {
+                accepting = poller.register(handler, ZPoller.POLLIN);
+            }
+        }
+
+        private void reply(ZapRequest request, boolean allowed)
+        {
             final Socket reply = repliesEnabled ? replies : null;
             if (allowed) {
                 request.reply(200, OK, reply);
@@ -827,7 +1889,6 @@ public class ZAuth implements Closeable
                 request.metadata = null;
                 request.reply(400, "NO ACCESS", reply);
             }
-            return true;
         }
     }
 }
@@ -4,13 +4,20 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketAddress;
+import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class ZBeacon
 {
@@ -25,6 +32,7 @@ public class ZBeacon
     private byte[]                prefix            = {};
     private long                  broadcastInterval = DEFAULT_BROADCAST_INTERVAL;
     private Listener              listener          = null;
+    private BufferListener        bufferListener    = null;
 
     public ZBeacon(int port, byte[] beacon)
     {
@@ -67,7 +75,7 @@ public class ZBeacon
 
     public void start()
     {
-        if (listener != null) {
+        if (listener != null || bufferListener != null) {
             broadcastServer.start();
         }
         broadcastClient.start();
@@ -105,6 +113,20 @@ public class ZBeacon
         return listener;
     }
 
+    /**
+     * Sets a listener receiving the beacons without copying them.
+     * When set, it is called instead of the {@link Listener}.
+     */
+    public void setBufferListener(BufferListener listener)
+    {
+        this.bufferListener = listener;
+    }
+
+    public BufferListener getBufferListener()
+    {
+        return bufferListener;
+    }
+
     /**
      * All beacons with matching prefix are passed to a listener.
      */
@@ -113,6 +135,62 @@ public class ZBeacon
         void onBeacon(InetAddress sender, byte[] beacon);
     }
 
+    /**
+     * All beacons with matching prefix are passed to a listener, without any copy.
+     */
+    public interface BufferListener
+    {
+        /**
+         * Called for each beacon with matching prefix.
+         * @param sender the sender of the beacon.
+         * @param beacon a read-only view of the beacon, only valid during the call.
+         */
+        void onBeacon(InetAddress sender, ByteBuffer beacon);
+    }
+
+    /**
+     * The addresses of the local host, collected from the network interfaces and refreshed periodically,
+     * so that filtering the local beacons does not resolve the local host for each of them.
+     * <br/>
+     * Not thread-safe.
+     */
+    static final class LocalAddresses
+    {
+        private static final long REFRESH = TimeUnit.SECONDS.toNanos(10);
+
+        private Set<InetAddress> addresses = Collections.emptySet();
+        private long             expiry    = System.nanoTime();
+
+        boolean contains(InetAddress address)
+        {
+            if (address.isAnyLocalAddress() || address.isLoopbackAddress()) {
+                return true;
+            }
+            final long now = System.nanoTime();
+            if (now - expiry >= 0) {
+                addresses = collect();
+                expiry = now + REFRESH;
+            }
+            return addresses.contains(address);
+        }
+
+        private static Set<InetAddress> collect()
+        {
+            final Set<InetAddress> addresses = new HashSet<>();
+            try {
+                final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+                while (interfaces != null && interfaces.hasMoreElements()) {
+                    addresses.addAll(Collections.list(interfaces.nextElement().getInetAddresses()));
+                }
+            }
+            catch (SocketException e) {
+                e.printStackTrace();
+            }
+            // the addresses of the interfaces cover the one of the host name, without any name lookup
+            return addresses;
+        }
+    }
+
     /**
      * The broadcast client periodically sends beacons via UDP to the network.
      */
@@ -190,6 +268,8 @@ public class ZBeacon
         public void run()
         {
             ByteBuffer buffer = ByteBuffer.allocate(65535);
+            ByteBuffer view = buffer.asReadOnlyBuffer();
+            LocalAddresses local = new LocalAddresses();
             SocketAddress sender;
             int size;
             while (!interrupted()) {
@@ -203,14 +283,12 @@ public class ZBeacon
 
                     InetAddress senderAddress = ((InetSocketAddress) sender).getAddress();
 
-                    if (ignoreLocalAddress
-                            && (InetAddress.getLocalHost().getHostAddress().equals(senderAddress.getHostAddress())
-                                    || senderAddress.isAnyLocalAddress() || senderAddress.isLoopbackAddress())) {
+                    if (ignoreLocalAddress && local.contains(senderAddress)) {
                         continue;
                     }
 
                     size = read - buffer.remaining();
-                    handleMessage(buffer, size, senderAddress);
+                    handleMessage(buffer, view, size, senderAddress);
                 }
                 catch (ClosedChannelException ioException) {
                     break;
@@ -222,7 +300,7 @@ public class ZBeacon
             handle.socket().close();
         }
 
-        private void handleMessage(ByteBuffer buffer, int size, InetAddress from)
+        private void handleMessage(ByteBuffer buffer, ByteBuffer view, int size, InetAddress from)
         {
             if (size < prefix.length) {
                 return;
@@ -234,7 +312,14 @@ public class ZBeacon
                     return;
                 }
             }
-            listener.onBeacon(from, Arrays.copyOf(bytes, size));
+            final BufferListener bufferListener = ZBeacon.this.bufferListener;
+            if (bufferListener != null) {
+                view.limit(size).position(0);
+                bufferListener.onBeacon(from, view);
+            }
+            else {
+                listener.onBeacon(from, Arrays.copyOf(bytes, size));
+            }
         }
     }
 
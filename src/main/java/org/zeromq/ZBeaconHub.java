@@ -0,0 +1,450 @@
+package org.zeromq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Drives many beacons from a single thread.
+ * <p>
+ * Where each {@link ZBeacon} runs two threads, the hub sends all the broadcasts and receives all the beacons
+ * with one {@link Selector}: the broadcasts are scheduled in a timer queue and sent through a single socket,
+ * and each port is received by a single socket shared by all the listeners of that port,
+ * every beacon being passed to the listeners whose prefix matches.
+ * <p>
+ * The listeners are called from the thread of the hub and shall not block.
+ * <p>
+ * <pre>
+ * {@code
+ * ZBeaconHub hub = new ZBeaconHub();
+ * ZBeaconHub.Handle broadcast = hub.broadcast("255.255.255.255", 5670, beacon, 1000);
+ * ZBeaconHub.Handle listen = hub.listen(5670, prefix, true, listener);
+ * ...
+ * broadcast.close();
+ * hub.close();
+ * }
+ * </pre>
+ */
+public class ZBeaconHub implements Closeable
+{
+    /**
+     * The registration of a broadcast or a listener, closed to remove it from the hub.
+     */
+    public interface Handle extends Closeable
+    {
+        @Override
+        void close();
+    }
+
+    // a beacon periodically sent
+    private final class Broadcast implements Handle
+    {
+        private final InetSocketAddress destination;
+        private final ByteBuffer        beacon;
+        private final long              interval; // in nanoseconds
+        private long                    deadline; // in nanoseconds
+
+        private Broadcast(InetSocketAddress destination, byte[] beacon, long interval)
+        {
+            this.destination = destination;
+            this.beacon = ByteBuffer.wrap(beacon.clone());
+            this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+        }
+
+        @Override
+        public void close()
+        {
+            execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    broadcasts.remove(Broadcast.this);
+                }
+            });
+        }
+    }
+
+    // a listener of the beacons received on a port
+    private final class Subscription implements Handle
+    {
+        private final int              port;
+        private final byte[]           prefix;
+        private final boolean          ignoreLocalAddress;
+        private final ZBeacon.Listener listener;
+
+        private Subscription(int port, byte[] prefix, boolean ignoreLocalAddress, ZBeacon.Listener listener)
+        {
+            this.port = port;
+            this.prefix = prefix.clone();
+            this.ignoreLocalAddress = ignoreLocalAddress;
+            this.listener = listener;
+        }
+
+        private boolean matches(ByteBuffer buffer, int size)
+        {
+            if (size < prefix.length) {
+                return false;
+            }
+            final byte[] bytes = buffer.array();
+            for (int index = 0; index < prefix.length; ++index) {
+                if (bytes[index] != prefix[index]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+            execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    unsubscribe(Subscription.this);
+                }
+            });
+        }
+    }
+
+    // the socket receiving the beacons of a port, shared by its subscriptions
+    private static final class Receiver
+    {
+        private final DatagramChannel    channel;
+        private final List<Subscription> subscriptions = new ArrayList<>();
+
+        private Receiver(DatagramChannel channel)
+        {
+            this.channel = channel;
+        }
+    }
+
+    // orders the broadcasts by deadline
+    private static final Comparator<Broadcast> DEADLINE = new Comparator<Broadcast>()
+    {
+        @Override
+        public int compare(Broadcast first, Broadcast second)
+        {
+            return Long.signum(first.deadline - second.deadline);
+        }
+    };
+
+    private final Selector                 selector;
+    private final DatagramChannel          sender;
+    private final Queue<Runnable>          tasks      = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Broadcast> broadcasts = new PriorityQueue<>(16, DEADLINE);
+    private final Map<Integer, Receiver>   receivers  = new HashMap<>();
+    private final ByteBuffer               buffer     = ByteBuffer.allocate(65535);
+    private final Thread                   thread;
+    private volatile boolean               running    = true;
+    private final ZBeacon.LocalAddresses   local      = new ZBeacon.LocalAddresses();
+
+    public ZBeaconHub()
+    {
+        try {
+            selector = Selector.open();
+            sender = DatagramChannel.open();
+            sender.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            sender.configureBlocking(false);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        thread = new Thread("zbeacon-hub")
+        {
+            @Override
+            public void run()
+            {
+                loop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Periodically broadcasts a beacon.
+     *
+     * @param host      the host where to send the beacon, usually a broadcast address.
+     * @param port      the port where to send the beacon.
+     * @param beacon    the beacon to send.
+     * @param interval  the interval between two broadcasts, in milliseconds. Strictly positive.
+     * @return the handle to close to stop the broadcast.
+     */
+    public Handle broadcast(String host, int port, byte[] beacon, long interval)
+    {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Broadcast interval must be positive: " + interval);
+        }
+        final InetSocketAddress destination;
+        try {
+            destination = new InetSocketAddress(InetAddress.getByName(host), port);
+        }
+        catch (UnknownHostException e) {
+            throw new RuntimeException(e);
+        }
+        final Broadcast broadcast = new Broadcast(destination, beacon, interval);
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                broadcast.deadline = System.nanoTime();
+                broadcasts.add(broadcast);
+            }
+        });
+        return broadcast;
+    }
+
+    /**
+     * Listens to the beacons received on a port.
+     *
+     * @param port                  the port where to receive the beacons.
+     * @param prefix                the prefix of the beacons passed to the listener.
+     * @param ignoreLocalAddress    true to ignore the beacons sent from this host.
+     * @param listener              the listener of the beacons, called from the thread of the hub.
+     * @return the handle to close to stop listening.
+     * @throws RuntimeException if the port cannot be listened to, or if the hub is closed.
+     */
+    public Handle listen(int port, byte[] prefix, boolean ignoreLocalAddress, ZBeacon.Listener listener)
+    {
+        final Subscription subscription = new Subscription(port, prefix, ignoreLocalAddress, listener);
+        final FutureTask<Void> task = new FutureTask<>(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                subscribe(subscription);
+                return null;
+            }
+        });
+        if (Thread.currentThread() == thread) {
+            // from a listener
+            task.run();
+        }
+        else {
+            execute(task);
+        }
+        // waits for the port to be bound, to report a failure to the caller
+        try {
+            while (true) {
+                try {
+                    task.get(100, TimeUnit.MILLISECONDS);
+                    return subscription;
+                }
+                catch (TimeoutException e) {
+                    if (!thread.isAlive() && !task.isDone()) {
+                        throw new IllegalStateException("ZBeaconHub is closed");
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops all the broadcasts and listeners, and the thread of the hub.
+     * Called from a listener, returns without waiting for the thread of the hub to stop.
+     */
+    @Override
+    public void close()
+    {
+        running = false;
+        selector.wakeup();
+        if (Thread.currentThread() == thread) {
+            // the loop ends after the current listener
+            return;
+        }
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // executes the task in the thread of the hub
+    private void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void loop()
+    {
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                final long timeout = send();
+                selector.select(timeout);
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        receive((Receiver) key.attachment());
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            for (Receiver receiver : receivers.values()) {
+                close(receiver.channel);
+            }
+            receivers.clear();
+            broadcasts.clear();
+            close(sender);
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // sends the due broadcasts, returns the time in milliseconds till the next one, 0 if none
+    private long send()
+    {
+        final long now = System.nanoTime();
+        Broadcast broadcast;
+        while ((broadcast = broadcasts.peek()) != null && broadcast.deadline - now <= 0) {
+            broadcasts.poll();
+            broadcast.beacon.rewind();
+            try {
+                // a full send buffer skips this round
+                sender.send(broadcast.beacon, broadcast.destination);
+            }
+            catch (IOException e) {
+                // an unreachable destination skips this round without stopping the hub
+                System.out.printf("ZBeaconHub: Unable to broadcast to %s: %s%n", broadcast.destination, e);
+            }
+            broadcast.deadline += broadcast.interval;
+            if (broadcast.deadline - now <= 0) {
+                // late, do not try to catch up
+                broadcast.deadline = now + broadcast.interval;
+            }
+            broadcasts.add(broadcast);
+        }
+        if (broadcast == null) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(broadcast.deadline - now + 999999));
+    }
+
+    private void receive(Receiver receiver)
+    {
+        SocketAddress sender;
+        while (true) {
+            buffer.clear();
+            try {
+                sender = receiver.channel.receive(buffer);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (sender == null) {
+                return;
+            }
+            final int size = buffer.position();
+            final InetAddress address = ((InetSocketAddress) sender).getAddress();
+            // by index, as a listener may listen to the same port
+            for (int index = 0; index < receiver.subscriptions.size(); ++index) {
+                final Subscription subscription = receiver.subscriptions.get(index);
+                if (!subscription.matches(buffer, size)
+                        || (subscription.ignoreLocalAddress && local.contains(address))) {
+                    continue;
+                }
+                try {
+                    subscription.listener.onBeacon(address, Arrays.copyOf(buffer.array(), size));
+                }
+                catch (RuntimeException e) {
+                    // one failing listener does not prevent the others from receiving their beacons
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void subscribe(Subscription subscription) throws IOException
+    {
+        Receiver receiver = receivers.get(subscription.port);
+        if (receiver == null) {
+            final DatagramChannel channel = DatagramChannel.open();
+            try {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(
+                             new InetSocketAddress(
+                                     InetAddress.getByAddress(new byte[] { 0, 0, 0, 0 }),
+                                     subscription.port));
+                channel.configureBlocking(false);
+                receiver = new Receiver(channel);
+                channel.register(selector, SelectionKey.OP_READ, receiver);
+            }
+            catch (IOException | RuntimeException e) {
+                close(channel);
+                throw e;
+            }
+            receivers.put(subscription.port, receiver);
+        }
+        receiver.subscriptions.add(subscription);
+    }
+
+    private void unsubscribe(Subscription subscription)
+    {
+        final Receiver receiver = receivers.get(subscription.port);
+        if (receiver != null && receiver.subscriptions.remove(subscription) && receiver.subscriptions.isEmpty()) {
+            receivers.remove(subscription.port);
+            receiver.channel.keyFor(selector).cancel();
+            close(receiver.channel);
+        }
+    }
+
+    private void close(DatagramChannel channel)
+    {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,16 +1,39 @@
 package org.zeromq;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.zeromq.util.ZDigest;
 import org.zeromq.util.ZMetadata;
@@ -28,7 +51,7 @@ import org.zeromq.util.ZMetadata;
 <p/>
  * Those files need to be in ZMP-Format which is created by {@link org.zeromq.ZConfig}
  */
-public class ZCertStore
+public class ZCertStore implements Closeable
 {
     public interface Fingerprinter
     {
@@ -37,20 +60,20 @@ public class ZCertStore
 
     public static final class Timestamper implements Fingerprinter
     {
-        private final byte[] buf = new byte[Long.SIZE / Byte.SIZE];
-
         @Override
         public byte[] print(File path)
         {
+            // a new array each time, as the fingerprints are kept
+            final byte[] buf = new byte[Long.SIZE / Byte.SIZE];
             final long value = path.lastModified();
             buf[0] = (byte) ((value >>> 56) & 0xff);
-            buf[0] = (byte) ((value >>> 48) & 0xff);
-            buf[0] = (byte) ((value >>> 40) & 0xff);
-            buf[0] = (byte) ((value >>> 32) & 0xff);
-            buf[0] = (byte) ((value >>> 24) & 0xff);
-            buf[0] = (byte) ((value >>> 16) & 0xff);
-            buf[0] = (byte) ((value >>> 8) & 0xff);
-            buf[0] = (byte) ((value) & 0xff);
+            buf[1] = (byte) ((value >>> 48) & 0xff);
+            buf[2] = (byte) ((value >>> 40) & 0xff);
+            buf[3] = (byte) ((value >>> 32) & 0xff);
+            buf[4] = (byte) ((value >>> 24) & 0xff);
+            buf[5] = (byte) ((value >>> 16) & 0xff);
+            buf[6] = (byte) ((value >>> 8) & 0xff);
+            buf[7] = (byte) ((value) & 0xff);
             return buf;
         }
     }
@@ -63,6 +86,14 @@ public class ZCertStore
         @Override
         public byte[] print(File path)
         {
+            if (path.isFile()) {
+                try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+                    return new ZDigest(buffer).update(channel).data();
+                }
+                catch (IOException e) {
+                    return null;
+                }
+            }
             InputStream input = stream(path);
             if (input != null) {
                 try {
@@ -102,6 +133,154 @@ public class ZCertStore
         }
     }
 
+    /**
+     * Fingerprints the files with a fast non-cryptographic 128-bit hash of their memory-mapped content,
+     * suitable for detecting the changes only.
+     * <p>
+     * The fingerprints are cached by file identity (inode when available), size and modification time,
+     * so that an unchanged file is never read again.
+     */
+    public static final class FastHasher implements Fingerprinter
+    {
+        // a cached fingerprint
+        private static final class Print
+        {
+            private final long   size;
+            private final long   modified;
+            private final byte[] print;
+
+            private Print(long size, long modified, byte[] print)
+            {
+                this.size = size;
+                this.modified = modified;
+                this.print = print;
+            }
+        }
+
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        private final Map<Object, Print> cache;
+
+        public FastHasher()
+        {
+            this(1 << 18);
+        }
+
+        /**
+         * @param capacity the maximum number of cached fingerprints.
+         */
+        public FastHasher(final int capacity)
+        {
+            cache = new LinkedHashMap<Object, Print>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, Print> eldest)
+                {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        @Override
+        public byte[] print(File path)
+        {
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(
+                                                                            path.toPath(),
+                                                                            BasicFileAttributes.class);
+                if (attributes.isDirectory()) {
+                    // the content of a directory is its sorted list of names
+                    final List<String> list = Arrays.asList(path.list());
+                    Collections.sort(list);
+                    return hash(ByteBuffer.wrap(list.toString().getBytes(ZMQ.CHARSET)));
+                }
+                final Object key = attributes.fileKey() == null ? path.getAbsoluteFile() : attributes.fileKey();
+                final long size = attributes.size();
+                final long modified = attributes.lastModifiedTime().toMillis();
+                final Print cached = cache.get(key);
+                if (cached != null && cached.size == size && cached.modified == modified) {
+                    return cached.print;
+                }
+                final byte[] print;
+                try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+                    print = hash(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                }
+                cache.put(key, new Print(size, modified, print));
+                return print;
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+
+        // MurmurHash3, x64 128-bit variant
+        private static byte[] hash(ByteBuffer input)
+        {
+            final ByteBuffer data = input.order(ByteOrder.LITTLE_ENDIAN);
+            final int length = data.remaining();
+            long h1 = 0;
+            long h2 = 0;
+            while (data.remaining() >= 16) {
+                h1 ^= mix1(data.getLong());
+                h1 = Long.rotateLeft(h1, 27) + h2;
+                h1 = h1 * 5 + 0x52dce729;
+                h2 ^= mix2(data.getLong());
+                h2 = Long.rotateLeft(h2, 31) + h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+            long k1 = 0;
+            long k2 = 0;
+            final int tail = data.remaining();
+            for (int index = tail - 1; index >= 0; --index) {
+                final long value = data.get(data.position() + index) & 0xffL;
+                if (index >= 8) {
+                    k2 |= value << ((index - 8) * 8);
+                }
+                else {
+                    k1 |= value << (index * 8);
+                }
+            }
+            if (tail > 8) {
+                h2 ^= mix2(k2);
+            }
+            if (tail > 0) {
+                h1 ^= mix1(k1);
+            }
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+            return ByteBuffer.allocate(16).putLong(h1).putLong(h2).array();
+        }
+
+        private static long mix1(long k1)
+        {
+            return Long.rotateLeft(k1 * C1, 31) * C2;
+        }
+
+        private static long mix2(long k2)
+        {
+            return Long.rotateLeft(k2 * C2, 33) * C1;
+        }
+
+        private static long fmix(long k)
+        {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+
     private interface IFileVisitor
     {
         /**
@@ -119,17 +298,593 @@ public class ZCertStore
         boolean visitDir(File dir);
     }
 
+    /**
+     * Index of the certificates by their 32-byte public key.
+     * <p>
+     * The keys are stored as longs in an open-addressing table,
+     * so that a lookup with the raw bytes of a key needs neither encoding nor allocation.
+     */
+    private static final class Index
+    {
+        private static final int LONGS = 4; // number of longs per key
+
+        private long[]      keys;
+        private ZMetadata[] values;
+        private boolean[]   used;
+        private int         mask;
+        private int         size;
+
+        private Index()
+        {
+            allocate(16);
+        }
+
+        private void allocate(int capacity)
+        {
+            keys = new long[capacity * LONGS];
+            values = new ZMetadata[capacity];
+            used = new boolean[capacity];
+            mask = capacity - 1;
+        }
+
+        // keeps the table at most half full
+        private void grow()
+        {
+            final long[] oldKeys = keys;
+            final ZMetadata[] oldValues = values;
+            final boolean[] oldUsed = used;
+            allocate(used.length * 2);
+            for (int old = 0; old < oldUsed.length; ++old) {
+                if (oldUsed[old]) {
+                    final int base = old * LONGS;
+                    int slot = hash(oldKeys[base], oldKeys[base + 2]) & mask;
+                    while (used[slot]) {
+                        slot = (slot + 1) & mask;
+                    }
+                    System.arraycopy(oldKeys, base, keys, slot * LONGS, LONGS);
+                    values[slot] = oldValues[old];
+                    used[slot] = true;
+                }
+            }
+        }
+
+        private static long read(byte[] key, int offset)
+        {
+            long value = 0;
+            for (int index = offset; index < offset + 8; ++index) {
+                value = (value << 8) | (key[index] & 0xff);
+            }
+            return value;
+        }
+
+        // the keys are evenly distributed, a light mixing is enough
+        private static int hash(long first, long second)
+        {
+            final long hash = (first ^ second) * 0x9e3779b97f4a7c15L;
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        private int slot(byte[] key)
+        {
+            final long a = read(key, 0);
+            final long b = read(key, 8);
+            final long c = read(key, 16);
+            final long d = read(key, 24);
+            int slot = hash(a, c) & mask;
+            while (used[slot]) {
+                final int base = slot * LONGS;
+                if (keys[base] == a && keys[base + 1] == b && keys[base + 2] == c && keys[base + 3] == d) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -slot - 1;
+        }
+
+        private void put(byte[] key, ZMetadata metadata)
+        {
+            int slot = slot(key);
+            if (slot < 0) {
+                if ((size + 1) * 2 > used.length) {
+                    grow();
+                    slot = slot(key);
+                }
+                slot = -slot - 1;
+                final int base = slot * LONGS;
+                for (int index = 0; index < LONGS; ++index) {
+                    keys[base + index] = read(key, index * 8);
+                }
+                used[slot] = true;
+                ++size;
+            }
+            values[slot] = metadata;
+        }
+
+        // removes the key, shifting back the following entries of its cluster
+        private void remove(byte[] key)
+        {
+            int hole = slot(key);
+            if (hole < 0) {
+                return;
+            }
+            int next = (hole + 1) & mask;
+            while (used[next]) {
+                final int base = next * LONGS;
+                final int home = hash(keys[base], keys[base + 2]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    System.arraycopy(keys, base, keys, hole * LONGS, LONGS);
+                    values[hole] = values[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            used[hole] = false;
+            values[hole] = null;
+            --size;
+        }
+
+        private Index copy()
+        {
+            final Index copy = new Index();
+            copy.keys = keys.clone();
+            copy.values = values.clone();
+            copy.used = used.clone();
+            copy.mask = mask;
+            copy.size = size;
+            return copy;
+        }
+
+        private boolean contains(byte[] key)
+        {
+            return slot(key) >= 0;
+        }
+
+        private ZMetadata get(byte[] key)
+        {
+            final int slot = slot(key);
+            return slot < 0 ? null : values[slot];
+        }
+    }
+
+    /**
+     * Applies the changes of the certificates directory to the index as they happen,
+     * file by file, on a copy of the index published once the pending changes are processed.
+     */
+    private final class Watcher extends Thread
+    {
+        private final WatchService             service;
+        private final Map<WatchKey, File>      directories = new HashMap<>();
+        private final Map<File, byte[]>        files       = new HashMap<>(); // the loaded certificates with their key
+        private final Map<ByteBuffer, Integer> owners      = new HashMap<>(); // the certificates holding each key
+
+        private Watcher() throws IOException
+        {
+            super("zcertstore-watcher-" + location.getName());
+            setDaemon(true);
+            service = location.toPath().getFileSystem().newWatchService();
+        }
+
+        @Override
+        public void run()
+        {
+            while (true) {
+                final WatchKey key;
+                try {
+                    key = service.take();
+                }
+                catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                final File dir = directories.get(key);
+                if (dir == null) {
+                    // cancelled by a rescan
+                    key.pollEvents();
+                    continue;
+                }
+                Index keys = publicKeys.copy();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // changes have been lost, start again
+                        keys = scan();
+                        break;
+                    }
+                    final File file = new File(dir, event.context().toString());
+                    try {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            if (file.isDirectory()) {
+                                scan(file, keys);
+                            }
+                            else {
+                                add(file, keys);
+                            }
+                        }
+                        else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                            if (file.isFile()) {
+                                remove(file, keys);
+                                add(file, keys);
+                            }
+                        }
+                        else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            remove(file, keys);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        // one bad file shall not stop the watching of the others
+                        System.out.printf(
+                                          "Warning!! Unable to apply the change of %s: %s%n",
+                                          file.getAbsolutePath(),
+                                          e);
+                    }
+                }
+                if (!key.reset()) {
+                    directories.remove(key);
+                }
+                publicKeys = keys;
+                reloads.incrementAndGet();
+            }
+        }
+
+        // loads the whole directory in a new index
+        private Index scan()
+        {
+            for (WatchKey key : directories.keySet()) {
+                key.cancel();
+            }
+            directories.clear();
+            files.clear();
+            owners.clear();
+            final Index keys = new Index();
+            scan(location, keys);
+            return keys;
+        }
+
+        private void scan(File dir, Index keys)
+        {
+            final List<File> found = new ArrayList<>();
+            register(dir, found);
+            final Certificate[] certificates = parse(found);
+            for (int index = 0; index < certificates.length; ++index) {
+                final Certificate certificate = certificates[index];
+                if (certificate != null) {
+                    keys.put(certificate.key, certificate.metadata);
+                    own(found.get(index), certificate.key);
+                }
+            }
+        }
+
+        // watches the directory and its sub-directories, collecting their files
+        private void register(File dir, List<File> found)
+        {
+            try {
+                directories.put(
+                                dir.toPath().register(
+                                                      service,
+                                                      StandardWatchEventKinds.ENTRY_CREATE,
+                                                      StandardWatchEventKinds.ENTRY_MODIFY,
+                                                      StandardWatchEventKinds.ENTRY_DELETE),
+                                dir);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            final File[] children = dir.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File file : children) {
+                if (file.isDirectory()) {
+                    register(file, found);
+                }
+                else if (file.isFile()) {
+                    found.add(file);
+                }
+            }
+        }
+
+        private void add(File file, Index keys)
+        {
+            final Certificate certificate = read(file);
+            if (certificate != null) {
+                keys.put(certificate.key, certificate.metadata);
+                own(file, certificate.key);
+            }
+        }
+
+        // removes the certificate, or all the certificates under the directory
+        private void remove(File file, Index keys)
+        {
+            final byte[] key = files.remove(file);
+            if (key != null) {
+                disown(key, keys);
+                return;
+            }
+            final String prefix = file.getPath() + File.separator;
+            final Iterator<Map.Entry<File, byte[]>> iterator = files.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<File, byte[]> entry = iterator.next();
+                if (entry.getKey().getPath().startsWith(prefix)) {
+                    disown(entry.getValue(), keys);
+                    iterator.remove();
+                }
+            }
+        }
+
+        // remembers the key of the certificate, several certificates possibly holding the same key
+        private void own(File file, byte[] key)
+        {
+            files.put(file, key);
+            final ByteBuffer wrapped = ByteBuffer.wrap(key);
+            final Integer count = owners.get(wrapped);
+            owners.put(wrapped, count == null ? 1 : count + 1);
+        }
+
+        // forgets a certificate of the key, removing the key once no certificate holds it anymore
+        private void disown(byte[] key, Index keys)
+        {
+            final ByteBuffer wrapped = ByteBuffer.wrap(key);
+            final Integer count = owners.get(wrapped);
+            if (count == null || count <= 1) {
+                owners.remove(wrapped);
+                keys.remove(key);
+            }
+            else {
+                owners.put(wrapped, count - 1);
+            }
+        }
+    }
+
+    // a parsed certificate
+    private static final class Certificate
+    {
+        private final byte[]    key;
+        private final ZMetadata metadata;
+
+        private Certificate(byte[] key, ZMetadata metadata)
+        {
+            this.key = key;
+            this.metadata = metadata;
+        }
+    }
+
+    // parses a range of certificates, splitting it in halves until it is small enough
+    private static final class Parser extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private static final int  THRESHOLD        = 64;
+
+        private final List<File>    files;
+        private final Certificate[] certificates;
+        private final int           from;
+        private final int           to;
+
+        private Parser(List<File> files, Certificate[] certificates, int from, int to)
+        {
+            this.files = files;
+            this.certificates = certificates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= THRESHOLD) {
+                for (int index = from; index < to; ++index) {
+                    certificates[index] = read(files.get(index));
+                }
+            }
+            else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(
+                          new Parser(files, certificates, from, middle),
+                          new Parser(files, certificates, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Binary snapshot of a store, to start without parsing the unchanged certificates.
+     * <p>
+     * Made of the magic number, the location of the store, then for each scanned file or directory,
+     * its relative path, its fingerprint and, for a certificate, its raw public key and its metadata.
+     * The strings are encoded in UTF-8 and prefixed by their length.
+     */
+    private static final class Snapshot
+    {
+        private static final int MAGIC = 0x5a435331; // ZCS1
+
+        private static final byte OTHER       = 0;
+        private static final byte CERTIFICATE = 1;
+
+        // a file or directory found in the snapshot
+        private static final class Known
+        {
+            private final byte[]      fingerprint;
+            private final Certificate certificate;
+
+            private Known(byte[] fingerprint, Certificate certificate)
+            {
+                this.fingerprint = fingerprint;
+                this.certificate = certificate;
+            }
+        }
+
+        // reads the snapshot, returns its entries by relative path, empty if it is absent or invalid
+        private static Map<String, Known> read(File snapshot, File location)
+        {
+            final Map<String, Known> known = new HashMap<>();
+            if (!snapshot.isFile()) {
+                return known;
+            }
+            // not mapped, so that the snapshot can be replaced at the next reload on any platform
+            try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+                final long length = channel.size();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot too large: " + length);
+                }
+                final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // read it all
+                }
+                buffer.flip();
+                if (buffer.getInt() != MAGIC || !location.getAbsolutePath().equals(string(buffer))) {
+                    return known;
+                }
+                final int count = size(buffer);
+                for (int index = 0; index < count; ++index) {
+                    final String path = string(buffer);
+                    final byte[] fingerprint = bytes(buffer);
+                    Certificate certificate = null;
+                    if (buffer.get() == CERTIFICATE) {
+                        final byte[] key = new byte[32];
+                        buffer.get(key);
+                        ZMetadata metadata = null;
+                        final int size = buffer.getInt();
+                        if (size != -1) {
+                            check(size, buffer);
+                            metadata = new ZMetadata();
+                            for (int entry = 0; entry < size; ++entry) {
+                                metadata.set(string(buffer), string(buffer));
+                            }
+                        }
+                        certificate = new Certificate(key, metadata);
+                    }
+                    known.put(path, new Known(fingerprint, certificate));
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                // corrupted or truncated, everything will be parsed again
+                System.out.printf("Warning!! Ignoring invalid snapshot %s: %s%n", snapshot.getAbsolutePath(), e);
+                known.clear();
+            }
+            return known;
+        }
+
+        private static byte[] bytes(ByteBuffer buffer)
+        {
+            final int length = buffer.getInt();
+            if (length == -1) {
+                return null;
+            }
+            check(length, buffer);
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        // reads a count of items, each one taking at least a byte
+        private static int size(ByteBuffer buffer)
+        {
+            final int size = buffer.getInt();
+            check(size, buffer);
+            return size;
+        }
+
+        // a corrupted length shall not allocate more than the snapshot holds
+        private static void check(int length, ByteBuffer buffer)
+        {
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalStateException(
+                        "Invalid length " + length + " with " + buffer.remaining() + " bytes left");
+            }
+        }
+
+        private static String string(ByteBuffer buffer)
+        {
+            return new String(bytes(buffer), ZMQ.CHARSET);
+        }
+
+        // writes the snapshot in a temporary file, then moves it in place
+        private static void write(
+                                  File snapshot,
+                                  File location,
+                                  Map<File, byte[]> fingerprints,
+                                  Map<File, Certificate> certificates)
+                throws IOException
+        {
+            final File parent = snapshot.getAbsoluteFile().getParentFile();
+            final File temporary = File.createTempFile(snapshot.getName(), ".tmp", parent);
+            try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                output.writeInt(MAGIC);
+                string(output, location.getAbsolutePath());
+                output.writeInt(fingerprints.size());
+                final Path root = location.toPath();
+                for (Map.Entry<File, byte[]> entry : fingerprints.entrySet()) {
+                    final File file = entry.getKey();
+                    string(output, root.relativize(file.toPath()).toString());
+                    bytes(output, entry.getValue());
+                    final Certificate certificate = certificates.get(file);
+                    if (certificate == null) {
+                        output.writeByte(OTHER);
+                        continue;
+                    }
+                    output.writeByte(CERTIFICATE);
+                    output.write(certificate.key);
+                    if (certificate.metadata == null) {
+                        output.writeInt(-1);
+                        continue;
+                    }
+                    output.writeInt(certificate.metadata.keySet().size());
+                    for (String key : certificate.metadata.keySet()) {
+                        string(output, key);
+                        string(output, certificate.metadata.get(key));
+                    }
+                }
+            }
+            catch (IOException e) {
+                temporary.delete();
+                throw e;
+            }
+            Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private static void bytes(DataOutputStream output, byte[] bytes) throws IOException
+        {
+            if (bytes == null) {
+                output.writeInt(-1);
+            }
+            else {
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+        }
+
+        private static void string(DataOutputStream output, String string) throws IOException
+        {
+            bytes(output, string.getBytes(ZMQ.CHARSET));
+        }
+    }
+
+    // the path of the public key in a certificate
+    private static final ZConfig.Path PUBLIC_KEY = ZConfig.path("curve/public-key");
+
+    // the pool parsing the certificates, shared by all the stores
+    private static final ForkJoinPool PARSERS = new ForkJoinPool();
+
     //  Directory location
     private final File location;
 
     // the scanned files (and directories) along with their fingerprint
     private final Map<File, byte[]> fingerprints = new HashMap<>();
 
-    // collected public keys
-    private final Map<String, ZMetadata> publicKeys = new HashMap<>();
+    // collected public keys, replaced as a whole at each reload
+    private volatile Index publicKeys = new Index();
+
+    // the number of times the public keys have been replaced
+    private final AtomicLong reloads = new AtomicLong();
+
+    // the parsed certificates by file
+    private final Map<File, Certificate> certificates = new HashMap<>();
 
     private final Fingerprinter finger;
 
+    // the snapshot kept up to date at each reload, or null
+    private final File snapshot;
+
+    // the background watcher of the directory, or null when checking for changes at each lookup
+    private final Watcher watcher;
+
     /**
      * Create a Certificate Store at that file system folder location
      * @param location
@@ -140,10 +895,99 @@ public class ZCertStore
     }
 
     public ZCertStore(String location, Fingerprinter fingerprinter)
+    {
+        this(location, fingerprinter, null);
+    }
+
+    /**
+     * Create a Certificate Store at that file system folder location, starting from a snapshot.
+     * <p>
+     * The certificates whose fingerprint did not change since the snapshot are not parsed again.
+     * The snapshot is rewritten each time the certificates are reloaded after a change.
+     *
+     * @param location      the folder of the certificates.
+     * @param fingerprinter the fingerprinter detecting the changes of the files.
+     * @param snapshot      the snapshot file, created if absent, or null for none.
+     */
+    public ZCertStore(String location, Fingerprinter fingerprinter, File snapshot)
     {
         this.finger = fingerprinter;
         this.location = new File(location);
-        loadFiles();
+        this.snapshot = snapshot;
+        this.watcher = null;
+        if (snapshot == null) {
+            loadFiles();
+        }
+        else {
+            loadFiles(Snapshot.read(snapshot, this.location));
+        }
+    }
+
+    /**
+     * Create a Certificate Store at that file system folder location.
+     * <p>
+     * When watching, the changes of the certificates are applied in background as they happen,
+     * and the lookups do not check the folder anymore.
+     * If the file system cannot be watched, the folder is checked for changes at each lookup.
+     *
+     * @param location  the folder of the certificates.
+     * @param watch     true to watch the folder, false to check it for changes at each lookup.
+     */
+    public ZCertStore(String location, boolean watch)
+    {
+        this.finger = new Timestamper();
+        this.location = new File(location);
+        this.snapshot = null;
+        Watcher watcher = null;
+        if (watch) {
+            if (!this.location.exists()) {
+                this.location.mkdirs();
+            }
+            try {
+                watcher = new Watcher();
+                publicKeys = watcher.scan();
+                watcher.start();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                watcher = null;
+            }
+        }
+        this.watcher = watcher;
+        if (watcher == null) {
+            loadFiles();
+        }
+    }
+
+    /**
+     * Stops watching the folder of the certificates.
+     */
+    @Override
+    public void close()
+    {
+        if (watcher != null) {
+            try {
+                watcher.service.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // true if the file is the snapshot or one of its temporary files
+    private boolean isSnapshot(File file)
+    {
+        if (snapshot == null) {
+            return false;
+        }
+        final File target = snapshot.getAbsoluteFile();
+        final File candidate = file.getAbsoluteFile();
+        if (!target.getParentFile().equals(candidate.getParentFile())) {
+            return false;
+        }
+        final String name = candidate.getName();
+        return name.equals(target.getName()) || (name.startsWith(target.getName()) && name.endsWith(".tmp"));
     }
 
     private boolean traverseDirectory(File root, IFileVisitor visitor)
@@ -154,14 +998,25 @@ public class ZCertStore
         if (visitor.visitDir(root)) {
             return true;
         }
-        for (File file : root.listFiles()) {
+        final File[] files = root.listFiles();
+        if (files == null) {
+            return false;
+        }
+        for (File file : files) {
             if (file.isFile()) {
+                if (isSnapshot(file)) {
+                    // written by the store itself, not a certificate
+                    continue;
+                }
                 if (visitor.visitFile(file)) {
                     return true;
                 }
             }
             else if (file.isDirectory()) {
-                return traverseDirectory(file, visitor);
+                // visit the siblings as well, unless the visitor stops the traversal
+                if (traverseDirectory(file, visitor)) {
+                    return true;
+                }
             }
             else {
                 System.out.printf(
@@ -181,61 +1036,82 @@ public class ZCertStore
         if (publicKey.length != 32) {
             throw new RuntimeException("publickey needs to have a size of 32 bytes. got only " + publicKey.length);
         }
-        return containsPublicKey(ZMQ.Curve.z85Encode(publicKey));
+        reloadIfNecessary();
+        return publicKeys.contains(publicKey);
     }
 
     /**
      * check if a z85-based public key is in the certificate store.
      * This method will scan the folder for changes on every call
+     * @return false if the key is not a valid z85 public key.
      */
     public boolean containsPublicKey(String publicKey)
     {
-        if (publicKey.length() != 40) {
-            throw new RuntimeException("z85 publickeys should have a length of 40 bytes but got " + publicKey.length());
-        }
-
-        reloadIfNecessary();
-        return publicKeys.containsKey(publicKey);
+        final byte[] key = decode(publicKey);
+        return key != null && containsPublicKey(key);
     }
 
+    /**
+     * Gives the metadata of a certificate.
+     * @param publicKey the z85 representation of the public key of the certificate.
+     * @return the metadata of the certificate, or null if not in the store or not a valid z85 public key.
+     */
     public ZMetadata getMetadata(String publicKey)
     {
+        final byte[] key = decode(publicKey);
+        return key == null ? null : getMetadata(key);
+    }
+
+    // decodes a z85 public key, null if invalid
+    private static byte[] decode(String publicKey)
+    {
+        if (publicKey == null || publicKey.length() != 40) {
+            return null;
+        }
+        try {
+            return ZMQ.Curve.z85Decode(publicKey);
+        }
+        catch (RuntimeException e) {
+            // not a z85 string
+            return null;
+        }
+    }
+
+    /**
+     * Gives the metadata of a certificate.
+     * @param publicKey the 32 byte array representing the public key of the certificate.
+     * @return the metadata of the certificate, or null if not in the store.
+     */
+    public ZMetadata getMetadata(byte[] publicKey)
+    {
+        if (publicKey.length != 32) {
+            return null;
+        }
         reloadIfNecessary();
         return publicKeys.get(publicKey);
     }
 
     private void loadFiles()
     {
-        final Map<String, ZMetadata> keys = new HashMap<>();
+        loadFiles(Collections.<String, Snapshot.Known> emptyMap());
+    }
+
+    // loads the certificates, reusing the known ones whose fingerprint did not change
+    private void loadFiles(Map<String, Snapshot.Known> known)
+    {
+        final Index keys = new Index();
         if (!location.exists()) {
             location.mkdirs();
         }
         final Map<File, byte[]> collected = new HashMap<>();
+        final List<File> found = new ArrayList<>();
 
         traverseDirectory(location, new IFileVisitor()
         {
             @Override
             public boolean visitFile(File file)
             {
-                try {
-                    ZConfig zconf = ZConfig.load(file.getAbsolutePath());
-                    String publicKey = zconf.getValue("curve/public-key");
-                    if (publicKey == null) {
-                        System.out.printf(
-                                          "Warning!! File %s has no curve/public-key-element. SKIPPING!%n",
-                                          file.getAbsolutePath());
-                        return false;
-                    }
-                    if (publicKey.length() == 32) { // we want to store the public-key as Z85-String
-                        publicKey = ZMQ.Curve.z85Encode(publicKey.getBytes(ZMQ.CHARSET));
-                    }
-                    assert (publicKey.length() == 40);
-                    keys.put(publicKey, ZMetadata.read(zconf));
-                    collected.put(file, finger.print(file));
-                }
-                catch (IOException e) {
-                    e.printStackTrace();
-                }
+                found.add(file);
                 return false;
             }
 
@@ -247,27 +1123,144 @@ public class ZCertStore
             }
         });
 
-        publicKeys.clear();
-        publicKeys.putAll(keys);
+        // the fingerprinters are not thread-safe, only the parsing is performed in parallel
+        final Map<File, Certificate> loaded = new HashMap<>();
+        final List<File> parsing = new ArrayList<>();
+        final Path root = location.toPath();
+        for (File file : found) {
+            // invalid files are remembered too, not to reload the store until they change
+            final byte[] fingerprint = finger.print(file);
+            collected.put(file, fingerprint);
+            final Snapshot.Known previous = known.isEmpty() ? null
+                    : known.get(root.relativize(file.toPath()).toString());
+            if (previous != null && Arrays.equals(previous.fingerprint, fingerprint)) {
+                if (previous.certificate != null) {
+                    keys.put(previous.certificate.key, previous.certificate.metadata);
+                    loaded.put(file, previous.certificate);
+                }
+            }
+            else {
+                parsing.add(file);
+            }
+        }
+        final Certificate[] parsed = parse(parsing);
+        for (int index = 0; index < parsed.length; ++index) {
+            final Certificate certificate = parsed[index];
+            if (certificate != null) {
+                keys.put(certificate.key, certificate.metadata);
+                loaded.put(parsing.get(index), certificate);
+            }
+        }
+
+        publicKeys = keys;
+        reloads.incrementAndGet();
         fingerprints.clear();
         fingerprints.putAll(collected);
+        certificates.clear();
+        certificates.putAll(loaded);
+
+        if (snapshot != null && (!parsing.isEmpty() || known.size() != collected.size())) {
+            try {
+                Snapshot.write(snapshot, location, fingerprints, certificates);
+                // writing the snapshot in the store changes the fingerprint of its directory
+                final File parent = snapshot.getAbsoluteFile().getParentFile();
+                for (Map.Entry<File, byte[]> entry : fingerprints.entrySet()) {
+                    if (entry.getKey().getAbsoluteFile().equals(parent)) {
+                        entry.setValue(finger.print(entry.getKey()));
+                    }
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // parses the certificates in parallel, the results being in the order of the files
+    private static Certificate[] parse(List<File> files)
+    {
+        final Certificate[] certificates = new Certificate[files.size()];
+        if (files.size() <= Parser.THRESHOLD) {
+            new Parser(files, certificates, 0, files.size()).compute();
+        }
+        else {
+            PARSERS.invoke(new Parser(files, certificates, 0, files.size()));
+        }
+        return certificates;
+    }
+
+    // reads a certificate, returns null if not a valid one
+    private static Certificate read(File file)
+    {
+        try {
+            ZConfig zconf = ZConfig.load(file.getAbsolutePath());
+            String publicKey = zconf.getValue(PUBLIC_KEY);
+            if (publicKey == null) {
+                System.out.printf(
+                                  "Warning!! File %s has no curve/public-key-element. SKIPPING!%n",
+                                  file.getAbsolutePath());
+                return null;
+            }
+            // we want to store the public-key as raw bytes
+            final byte[] key = publicKey.length() == 32 ? publicKey.getBytes(ZMQ.CHARSET)
+                    : publicKey.length() == 40 ? ZMQ.Curve.z85Decode(publicKey) : null;
+            if (key == null || key.length != 32) {
+                System.out.printf(
+                                  "Warning!! File %s has an invalid curve/public-key-element. SKIPPING!%n",
+                                  file.getAbsolutePath());
+                return null;
+            }
+            return new Certificate(key, ZMetadata.read(zconf));
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        catch (RuntimeException e) {
+            // a malformed or half-written certificate
+            System.out.printf("Warning!! Unable to read %s: %s. SKIPPING!%n", file.getAbsolutePath(), e);
+        }
+        return null;
+    }
+
+    // the number of reloads of the certificates, to know from any thread when they changed
+    long reloads()
+    {
+        return reloads.get();
     }
 
     int getCertificatesCount()
     {
         reloadIfNecessary();
-        return publicKeys.size();
+        return publicKeys.size;
     }
 
     boolean reloadIfNecessary()
     {
+        if (watcher != null) {
+            // kept up to date in background
+            return false;
+        }
         if (checkForChanges()) {
-            loadFiles();
+            loadFiles(loaded());
             return true;
         }
         return false;
     }
 
+    // the currently loaded files, to parse again only the changed ones
+    private Map<String, Snapshot.Known> loaded()
+    {
+        final Map<String, Snapshot.Known> known = new HashMap<>();
+        final Path root = location.toPath();
+        for (Map.Entry<File, byte[]> entry : fingerprints.entrySet()) {
+            final File file = entry.getKey();
+            known.put(
+                      root.relativize(file.toPath()).toString(),
+                      new Snapshot.Known(entry.getValue(), certificates.get(file)));
+        }
+        return known;
+    }
+
     /**
      * Check if files in the certificate folders have been added or removed.
      */
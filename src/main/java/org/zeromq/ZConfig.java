@@ -1,21 +1,21 @@
 package org.zeromq;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Lets applications load, work with, and save configuration files.
@@ -80,9 +80,114 @@ public class ZConfig
         void handleNode(ZConfig node, int level) throws IOException;
     }
 
-    private static final String  LEFT           = "^( *)([0-9a-zA-Z\\$\\-_@\\.&\\+\\/]+)";
-    private static final Pattern PTRN_CONTAINER = Pattern.compile(LEFT + "( *#.*)?$");
-    private static final Pattern PTRN_KEYVALUE  = Pattern.compile(LEFT + " = ((\"|')(.*)(\\4)|(.*?))(#.*)?$");
+    /**
+     * A path precompiled into its elements, to look up a configuration without splitting the path each time.
+     * <p>
+     * Immutable, it can be kept in a constant and shared across threads.
+     */
+    public static final class Path
+    {
+        private final String   path;
+        private final String[] elements;
+        private final String   flat;     // the key of the path in a flattened view
+
+        private Path(String path)
+        {
+            final List<String> elements = new ArrayList<>();
+            for (String element : path.split("/")) {
+                if (!element.isEmpty()) {
+                    elements.add(element);
+                }
+            }
+            this.path = path;
+            this.elements = elements.toArray(new String[elements.size()]);
+            this.flat = join(this.elements);
+        }
+
+        /**
+         * Finds the configuration at this path.
+         * @param config the configuration where to start from.
+         * @return the configuration found, or null if none.
+         */
+        public ZConfig resolve(ZConfig config)
+        {
+            ZConfig current = config;
+            for (String element : elements) {
+                current = current.children.get(element);
+                if (current == null) {
+                    return null;
+                }
+            }
+            return current;
+        }
+
+        @Override
+        public String toString()
+        {
+            return path;
+        }
+    }
+
+    /**
+     * A flattened and immutable view of a configuration, giving access to any element by its full path
+     * with a single lookup.
+     * <p>
+     * Made of the containers and values present when it was created, it can be shared across threads without locking.
+     */
+    public static final class Flat
+    {
+        private final Map<String, String> values; // by full path, null for the containers
+
+        private Flat(Map<String, String> values)
+        {
+            this.values = Collections.unmodifiableMap(values);
+        }
+
+        public String getValue(String path)
+        {
+            return getValue(path, null);
+        }
+
+        public String getValue(String path, String defaultValue)
+        {
+            String value = values.get(path);
+            if (value == null) {
+                // the path may have superfluous slashes
+                final String flat = path(path).flat;
+                if (!values.containsKey(flat)) {
+                    return defaultValue;
+                }
+                value = values.get(flat);
+            }
+            return value;
+        }
+
+        public String getValue(Path path)
+        {
+            return getValue(path, null);
+        }
+
+        public String getValue(Path path, String defaultValue)
+        {
+            if (!values.containsKey(path.flat)) {
+                return defaultValue;
+            }
+            return values.get(path.flat);
+        }
+
+        public boolean pathExists(Path path)
+        {
+            return values.containsKey(path.flat);
+        }
+
+        /**
+         * @return the values by full path, including the containers with a null value.
+         */
+        public Map<String, String> getValues()
+        {
+            return values;
+        }
+    }
 
     private final String               name;
     private final Map<String, ZConfig> children = new HashMap<>();
@@ -128,6 +233,71 @@ public class ZConfig
         return this.name;
     }
 
+    /**
+     * Precompiles a path.
+     * @param path the path, made of names separated by slashes.
+     * @return the compiled path.
+     */
+    public static Path path(String path)
+    {
+        return new Path(path);
+    }
+
+    public String getValue(Path path)
+    {
+        return getValue(path, null);
+    }
+
+    public String getValue(Path path, String defaultValue)
+    {
+        final ZConfig config = path.resolve(this);
+        if (config == null) {
+            return defaultValue;
+        }
+        return config.value;
+    }
+
+    /**
+     * check if a value-path exists
+     */
+    public boolean pathExists(Path path)
+    {
+        return path.resolve(this) != null;
+    }
+
+    /**
+     * @return a flattened and immutable view of this configuration.
+     */
+    public Flat flatten()
+    {
+        final Map<String, String> values = new HashMap<>();
+        values.put("", value);
+        flatten("", values);
+        return new Flat(values);
+    }
+
+    private void flatten(String prefix, Map<String, String> values)
+    {
+        for (Entry<String, ZConfig> entry : children.entrySet()) {
+            final String path = prefix + entry.getKey();
+            final ZConfig child = entry.getValue();
+            values.put(path, child.value);
+            child.flatten(path + '/', values);
+        }
+    }
+
+    private static String join(String[] elements)
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (String element : elements) {
+            if (builder.length() > 0) {
+                builder.append('/');
+            }
+            builder.append(element);
+        }
+        return builder.toString();
+    }
+
     public String getValue(String path)
     {
         return getValue(path, null);
@@ -268,86 +438,226 @@ public class ZConfig
         }, 0);
     }
 
+    /**
+     * Receives the elements of a configuration file as they are parsed,
+     * without building the tree of the configuration.
+     */
+    public interface Handler
+    {
+        /**
+         * Called for each container.
+         * @param level the depth of the container, 0 for the top-level elements.
+         * @param name  the name of the container.
+         */
+        void container(int level, String name);
+
+        /**
+         * Called for each value.
+         * @param level the depth of the value, 0 for the top-level elements.
+         * @param name  the name of the value.
+         * @param value the value, trimmed and unquoted.
+         */
+        void value(int level, String name, String value);
+    }
+
     public static ZConfig load(String filename) throws IOException
     {
-        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        Reader reader = new FileReader(filename);
         try {
-            List<String> content = new ArrayList<>();
-
-            String line = reader.readLine();
-
-            while (line != null) {
-                boolean irrelevant = line.matches("^ *#.*|^ *[0-9]+.*") // ignore comments
-                        || line.trim().isEmpty(); // ignore empty lines;
-                if (!irrelevant) {
-                    content.add(line);
-                }
-
-                line = reader.readLine();
-            }
-
-            return load(new ZConfig("root", null), content, 0, new AtomicInteger());
+            return load(reader);
         }
         finally {
             reader.close();
         }
     }
 
-    private static ZConfig load(ZConfig parent, List<String> content, int currentLevel, AtomicInteger lineNumber)
+    /**
+     * Loads a configuration.
+     * @param reader the reader of the configuration, not closed by this method.
+     * @return the root of the configuration.
+     */
+    public static ZConfig load(Reader reader) throws IOException
     {
-        while (lineNumber.get() < content.size()) {
-            String currentLine = content.get(lineNumber.get());
-
-            Matcher container = PTRN_CONTAINER.matcher(currentLine);
-            if (container.find()) {
-                ZConfig child = child(parent, container, currentLevel, currentLine, lineNumber);
-                if (child == null) {
-                    // jump back;
-                    break;
+        final ZConfig root = new ZConfig("root", null);
+        parse(reader, new Handler()
+        {
+            // the current parent of each level
+            private ZConfig[] parents = { root };
+
+            @Override
+            public void container(int level, String name)
+            {
+                if (level + 1 == parents.length) {
+                    parents = Arrays.copyOf(parents, parents.length * 2);
                 }
-                load(child, content, currentLevel + 1, lineNumber);
+                parents[level + 1] = new ZConfig(name, parents[level]);
             }
-            else {
-                Matcher keyvalue = PTRN_KEYVALUE.matcher(currentLine);
-                if (keyvalue.find()) {
-                    ZConfig child = child(parent, keyvalue, currentLevel, currentLine, lineNumber);
-                    if (child == null) {
-                        // jump back;
-                        break;
+
+            @Override
+            public void value(int level, String name, String value)
+            {
+                new ZConfig(name, parents[level]).value = value;
+            }
+        });
+        return root;
+    }
+
+    /**
+     * Parses a configuration in a single pass, notifying its elements to the handler.
+     * @param reader    the reader of the configuration, not closed by this method.
+     * @param handler   the handler of the parsed elements.
+     */
+    public static void parse(Reader reader, Handler handler) throws IOException
+    {
+        new Parser(handler).parse(reader);
+    }
+
+    // line-oriented parser of the ZPL format
+    private static final class Parser
+    {
+        private final Handler handler;
+
+        private char[] line = new char[256];
+        private int    length;
+        private int    relevant; // number of relevant lines processed, used for reporting errors
+        private int    current;  // the deepest level allowed for the next line
+
+        private Parser(Handler handler)
+        {
+            this.handler = handler;
+        }
+
+        private void parse(Reader reader) throws IOException
+        {
+            final char[] buffer = new char[8192];
+            boolean cr = false;
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                for (int index = 0; index < read; ++index) {
+                    final char c = buffer[index];
+                    if (c == '\n' || c == '\r') {
+                        if (!(cr && c == '\n')) {
+                            // a line ends with \n, \r or \r\n
+                            line();
+                        }
+                        cr = c == '\r';
+                        continue;
                     }
-                    String value = keyvalue.group(5);
-                    if (value == null) {
-                        value = keyvalue.group(7);
+                    cr = false;
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
                     }
+                    line[length++] = c;
+                }
+            }
+            if (length > 0) {
+                line();
+            }
+        }
 
-                    if (value != null) {
-                        value = value.trim();
-                    }
+        private void line()
+        {
+            try {
+                process();
+            }
+            finally {
+                length = 0;
+            }
+        }
 
-                    child.value = value;
-                }
-                else {
-                    throw new ReadException("Couldn't process line", currentLine, lineNumber);
+        private void process()
+        {
+            int indent = 0;
+            while (indent < length && line[indent] == ' ') {
+                ++indent;
+            }
+            // ignore empty lines, comments and lines starting with a number
+            if (indent == length || line[indent] == '#' || (line[indent] >= '0' && line[indent] <= '9')
+                    || blank(indent)) {
+                return;
+            }
+            int end = indent;
+            while (end < length && isNameChar(line[end])) {
+                ++end;
+            }
+            if (end == indent) {
+                throw error("Couldn't process line");
+            }
+            final int level = indent / 4;
+            if (container(end)) {
+                enter(level);
+                current = level + 1;
+                handler.container(level, new String(line, indent, end - indent));
+            }
+            else if (end + 2 < length && line[end] == ' ' && line[end + 1] == '=' && line[end + 2] == ' ') {
+                enter(level);
+                current = level;
+                handler.value(level, new String(line, indent, end - indent), value(end + 3));
+            }
+            else {
+                throw error("Couldn't process line");
+            }
+            ++relevant;
+        }
+
+        private boolean blank(int from)
+        {
+            for (int index = from; index < length; ++index) {
+                if (line[index] > ' ') {
+                    return false;
                 }
             }
+            return true;
         }
-        return parent;
-    }
 
-    private static ZConfig child(ZConfig parent, Matcher matcher, int currentLevel, String currentLine,
-                                 AtomicInteger lineNumber)
-    {
-        int level = matcher.group(1).length() / 4;
+        // nothing after the name but an optional comment
+        private boolean container(int end)
+        {
+            if (end == length) {
+                return true;
+            }
+            int index = end;
+            while (index < length && line[index] == ' ') {
+                ++index;
+            }
+            return index < length && line[index] == '#';
+        }
 
-        if (level > currentLevel) {
-            throw new ReadException("Level mismatch in line", currentLine, lineNumber);
+        private void enter(int level)
+        {
+            if (level > current) {
+                throw error("Level mismatch in line");
+            }
         }
-        else if (level < currentLevel) {
-            // jump back;
-            return null;
+
+        // a quoted value ends with the last quote followed by the end of the line or a comment
+        private String value(int start)
+        {
+            if (start < length && (line[start] == '"' || line[start] == '\'')) {
+                final char quote = line[start];
+                for (int index = length - 1; index > start; --index) {
+                    if (line[index] == quote && (index + 1 == length || line[index + 1] == '#')) {
+                        return new String(line, start + 1, index - start - 1).trim();
+                    }
+                }
+            }
+            int end = start;
+            while (end < length && line[end] != '#') {
+                ++end;
+            }
+            return new String(line, start, end - start).trim();
+        }
+
+        private static boolean isNameChar(char c)
+        {
+            return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '$'
+                    || c == '-' || c == '_' || c == '@' || c == '.' || c == '&' || c == '+' || c == '/';
+        }
+
+        private ReadException error(String message)
+        {
+            return new ReadException(message, new String(line, 0, length), relevant);
         }
-        lineNumber.incrementAndGet();
-        return new ZConfig(matcher.group(2), parent);
     }
 
     public static class ReadException extends RuntimeException
@@ -358,10 +668,15 @@ public class ZConfig
         public final String currentLine;
 
         public ReadException(String message, String currentLine, AtomicInteger currentLineNumber)
+        {
+            this(message, currentLine, currentLineNumber.get());
+        }
+
+        public ReadException(String message, String currentLine, int currentLineNumber)
         {
             super(String.format("%s %s: %s", message, currentLineNumber, currentLine));
             this.currentLine = currentLine;
-            this.currentLineNumber = currentLineNumber.get();
+            this.currentLineNumber = currentLineNumber;
         }
     }
 }
@@ -4832,9 +4832,15 @@ public class ZMQ
      */
     public static class Event
     {
-        private final int    event;
-        private final Object value;
-        private final String address;
+        // the number of cached addresses per reusable event
+        private static final int CACHE = 8;
+
+        private int    event;
+        private Object value;
+        private String address;
+
+        // the decoder of a reusable event, lazily created
+        private Decoder decoder;
 
         public Event(int event, Object value, String address)
         {
@@ -4843,6 +4849,14 @@ public class ZMQ
             this.address = address;
         }
 
+        /**
+         * Creates an empty event, to be reused with {@link #recv(Socket, int, Event)}.
+         */
+        public Event()
+        {
+            this(0, null, null);
+        }
+
         public int getEvent()
         {
             return event;
@@ -4871,6 +4885,29 @@ public class ZMQ
             return e != null ? new Event(e.event(), e.argument(), e.address()) : null;
         }
 
+        /**
+         * Receive an event from a monitor socket into an existing event.
+         * The fields of the given event are overwritten, and its recently seen addresses are cached,
+         * so a monitoring loop reusing the same event does not allocate.
+         * @param socket the socket
+         * @param flags the flags to apply to the receive operation.
+         * @param reuse the event to fill, null to create a new one.
+         * @return the received event or null if no message was received,
+         * a new event if the provider cannot fill an existing one.
+         * @throws ZMQException
+         */
+        public static Event recv(Socket socket, int flags, Event reuse)
+        {
+            if (reuse == null || !(PROVIDER instanceof AProvider.EventReader)) {
+                // providers unable to fill an existing event create a new one
+                return recv(socket, flags);
+            }
+            if (reuse.decoder == null) {
+                reuse.decoder = reuse.new Decoder();
+            }
+            return ((AProvider.EventReader) PROVIDER).read(socket.base, flags, reuse.decoder) ? reuse : null;
+        }
+
         /**
          * Receive an event from a monitor socket.
          * Does a blocking recv.
@@ -4882,6 +4919,55 @@ public class ZMQ
         {
             return Event.recv(socket, 0);
         }
+
+        // fills the event, with a small direct-mapped cache of the addresses
+        private final class Decoder implements AEvent.Receiver
+        {
+            private final byte[][] raws      = new byte[CACHE][];
+            private final String[] addresses = new String[CACHE];
+
+            @Override
+            public void event(int code, Object argument, ByteBuffer addr)
+            {
+                event = code;
+                value = argument;
+                address = address(addr);
+            }
+
+            private String address(ByteBuffer addr)
+            {
+                if (addr == null) {
+                    return null;
+                }
+                final int start = addr.position();
+                final int length = addr.remaining();
+                int hash = length;
+                for (int index = 0; index < length; ++index) {
+                    hash = 31 * hash + addr.get(start + index);
+                }
+                final int slot = hash & (CACHE - 1);
+                final byte[] raw = raws[slot];
+                if (raw != null && raw.length == length && same(raw, addr, start)) {
+                    return addresses[slot];
+                }
+                final byte[] bytes = new byte[length];
+                addr.get(bytes);
+                addr.position(start);
+                raws[slot] = bytes;
+                addresses[slot] = new String(bytes, CHARSET);
+                return addresses[slot];
+            }
+
+            private boolean same(byte[] raw, ByteBuffer addr, int start)
+            {
+                for (int index = 0; index < raw.length; ++index) {
+                    if (raw[index] != addr.get(start + index)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
     }
 
     public static void sleep(long seconds)
@@ -2,9 +2,17 @@ package org.zeromq;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.zeromq.ZMQ.Socket;
 
@@ -12,6 +20,14 @@ import org.zeromq.ZMQ.Socket;
  * The ZMonitor actor provides an API for obtaining socket events such as
  * connected, listen, disconnected, etc. Socket events are only available
  * for sockets connecting or bound to ipc:// and tcp:// endpoints.
+ * <p>
+ * The events can be received one by one, optionally in a {@link #binary(boolean) compact binary encoding},
+ * or {@link #aggregate(int) aggregated} by endpoint in {@link #statistics() statistics} readable at any time,
+ * with {@link #alert(Event, int) alerts} received as events when a threshold is reached.
+ * <p>
+ * One monitor {@link #ZMonitor(ZContext, Socket, boolean) created for many sockets} can also watch them at once,
+ * {@link #add(Socket, Event...) added} and {@link #remove(Socket) removed} at any time, all polled by the same actor.
+ * Each event then tells the {@link ZEvent#socket socket} it came from.
  */
 public class ZMonitor implements Closeable
 {
@@ -41,11 +57,47 @@ public class ZMonitor implements Closeable
          */
         public final String value;
 
-        private ZEvent(ZMsg msg)
+        /**
+         * The monitored socket where the event occurred.
+         * May be null if the socket has been removed from the monitor since.
+         */
+        public final Socket socket;
+
+        private ZEvent(ZMsg msg, Map<Integer, Socket> registry, boolean tagged)
         {
             assert (msg != null);
-            assert (msg.size() == 3 || msg.size() == 4);
-
+            assert (msg.size() == 1 || (msg.size() >= 3 && msg.size() <= 5));
+
+            if (msg.size() == 1) {
+                // binary encoding
+                final ByteBuffer buf = ByteBuffer.wrap(msg.pop().getData());
+                socket = registry.get(buf.getInt());
+                code = buf.getInt();
+                type = Event.find(code);
+                final byte kind = buf.get();
+                final int number = buf.getInt();
+                final byte[] addr = new byte[buf.getShort() & 0xffff];
+                buf.get(addr);
+                address = new String(addr, ZMQ.CHARSET);
+
+                if (kind == NO_VALUE) {
+                    value = null;
+                }
+                else if (kind == INT_VALUE) {
+                    value = Integer.toString(number);
+                }
+                else {
+                    value = new String(buf.array(), buf.position(), buf.remaining(), ZMQ.CHARSET);
+                }
+                return;
+            }
+            // the events of a monitor created for a single socket are not tagged
+            if (tagged) {
+                socket = registry.get(ByteBuffer.wrap(msg.pop().getData()).getInt());
+            }
+            else {
+                socket = registry.get(MAIN);
+            }
             type = Event.valueOf(msg.popString());
             code = Integer.valueOf(msg.popString());
             address = msg.popString();
@@ -61,7 +113,8 @@ public class ZMonitor implements Closeable
         @Override
         public String toString()
         {
-            return "ZEvent [type=" + type + ", code=" + code + ", address=" + address + ", value=" + value + "]";
+            return "ZEvent [type=" + type + ", code=" + code + ", address=" + address + ", value=" + value + ", socket="
+                    + socket + "]";
         }
     }
 
@@ -103,6 +156,144 @@ public class ZMonitor implements Closeable
         }
     }
 
+    /**
+     * The aggregated events of one endpoint.
+     * Updated by the monitor, can be read at any time from any thread.
+     */
+    public static final class Endpoint
+    {
+        /**
+         * The address of the endpoint.
+         */
+        public final String address;
+
+        private final AtomicLongArray totals = new AtomicLongArray(Event.values().length);
+        private final AtomicLongArray rates  = new AtomicLongArray(Event.values().length);
+
+        private volatile long last;
+
+        // the events of the current window, only updated by the monitor
+        private final AtomicLongArray counts = new AtomicLongArray(Event.values().length);
+        private volatile long         start;  // the start in milliseconds of the current window
+        private volatile int          window; // the duration in milliseconds of the windows
+
+        private Endpoint(String address)
+        {
+            this.address = address;
+        }
+
+        /**
+         * @param type the type of event
+         * @return the number of events of this type since the start of the monitoring.
+         */
+        public long total(Event type)
+        {
+            return totals.get(type.ordinal());
+        }
+
+        /**
+         * @param type the type of event
+         * @return the number of events of this type during the last completed aggregation window.
+         */
+        public long rate(Event type)
+        {
+            // the windows are rolled by the events, the current one may have been completed since
+            final long elapsed = System.currentTimeMillis() - start;
+            if (elapsed < window) {
+                return rates.get(type.ordinal());
+            }
+            if (elapsed < 2L * window) {
+                return counts.get(type.ordinal());
+            }
+            // no event during the last completed window
+            return 0;
+        }
+
+        /**
+         * @return the time in milliseconds of the last event of this endpoint.
+         */
+        public long last()
+        {
+            return last;
+        }
+
+        // records an event and returns the number of events of this type in the current window
+        private int record(Event type, long now, int window)
+        {
+            this.window = window;
+            if (now - start >= window) {
+                // the previous window is reported only if it is the last one
+                final boolean contiguous = now - start < 2L * window;
+                for (int index = 0; index < counts.length(); ++index) {
+                    rates.lazySet(index, contiguous ? counts.get(index) : 0);
+                    counts.lazySet(index, 0);
+                }
+                start = now;
+            }
+            last = now;
+            totals.lazySet(type.ordinal(), totals.get(type.ordinal()) + 1);
+            final int count = (int) counts.get(type.ordinal()) + 1;
+            counts.lazySet(type.ordinal(), count);
+            return count;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder("Endpoint [address=").append(address);
+            for (Event type : Event.values()) {
+                final long total = total(type);
+                if (total > 0) {
+                    builder.append(", ").append(type).append('=').append(total).append('/').append(rate(type));
+                }
+            }
+            return builder.append(']').toString();
+        }
+    }
+
+    /**
+     * The events aggregated by endpoint.
+     * Updated by the monitor, can be read at any time from any thread.
+     */
+    public static final class Statistics
+    {
+        private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+        /**
+         * @param address the address of the endpoint
+         * @return the aggregated events of the endpoint, or null if none.
+         */
+        public Endpoint endpoint(String address)
+        {
+            return endpoints.get(address);
+        }
+
+        /**
+         * @return the aggregated events of all the endpoints.
+         */
+        public Collection<Endpoint> endpoints()
+        {
+            return Collections.unmodifiableCollection(endpoints.values());
+        }
+
+        // returns the endpoint of the given address, created if needed
+        private Endpoint get(String address)
+        {
+            Endpoint endpoint = endpoints.get(address);
+            if (endpoint == null) {
+                endpoint = new Endpoint(address);
+                endpoints.put(address, endpoint);
+            }
+            return endpoint;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Statistics " + endpoints.values();
+        }
+    }
+
     private boolean started;
 
     /**
@@ -160,6 +351,73 @@ public class ZMonitor implements Closeable
         return this;
     }
 
+    /**
+     * Sets the encoding of the received events.
+     * The binary encoding sends each event in one frame instead of a frame per field.
+     * @param binary true for the binary encoding, false for the one with strings.
+     * @return this instance.
+     */
+    public final ZMonitor binary(boolean binary)
+    {
+        if (started) {
+            System.out.println("ZMonitor: Unable to change encoding while already started.");
+            return this;
+        }
+        agent.send(BINARY, true);
+        agent.send(Boolean.toString(binary));
+        agent.recv();
+        return this;
+    }
+
+    /**
+     * Aggregates the events by endpoint in the {@link #statistics() statistics} instead of sending them.
+     * Only the {@link #alert(Event, int) alerts} are then received as events.
+     * @param window the duration in milliseconds of the window used to compute the rates of events. Strictly positive.
+     * @return this instance.
+     */
+    public final ZMonitor aggregate(int window)
+    {
+        assert (window > 0);
+        if (started) {
+            System.out.println("ZMonitor: Unable to aggregate events while already started.");
+            return this;
+        }
+        agent.send(AGGREGATE, true);
+        agent.send(Integer.toString(window));
+        agent.recv();
+        return this;
+    }
+
+    /**
+     * Sends an alert when events of the given type reach a threshold within an aggregation window for an endpoint.
+     * The alert is received as an event of this type, whose value is the threshold.
+     * @param type the type of events.
+     * @param threshold the number of events of the window triggering the alert, 0 to remove it.
+     * @return this instance.
+     */
+    public final ZMonitor alert(Event type, int threshold)
+    {
+        assert (threshold >= 0);
+        if (started) {
+            System.out.println("ZMonitor: Unable to add alerts while already started.");
+            return this;
+        }
+        agent.send(ALERT, true);
+        agent.send(type.name(), true);
+        agent.send(Integer.toString(threshold));
+        agent.recv();
+        return this;
+    }
+
+    /**
+     * Returns the events aggregated by endpoint, if {@link #aggregate(int) aggregating}.
+     * @return the live statistics of the monitor. Never null.
+     */
+    public final Statistics statistics()
+    {
+        return statistics;
+    }
+
     /**
      * Adds event types to monitor.
      * @param events the types of events to monitor.
@@ -202,6 +460,57 @@ public class ZMonitor implements Closeable
         return this;
     }
 
+    /**
+     * Adds a socket to monitor, at any time.
+     * If the monitor is not started yet, the monitoring of the socket begins at the start.
+     * @param socket the socket to monitor for events. Not null.
+     * @param events the types of events to monitor for this socket, none for the ones of the monitor.
+     * @return this instance.
+     */
+    public final ZMonitor add(Socket socket, Event... events)
+    {
+        assert (socket != null);
+        if (!tagged) {
+            System.out.printf("ZMonitor: Unable to add socket %s to a monitor created for a single socket.%n", socket);
+            return this;
+        }
+        int evts = events.length == 0 ? -1 : 0;
+        for (Event evt : events) {
+            evts |= evt.events;
+        }
+        final int id = ids.incrementAndGet();
+        if (sockets.putIfAbsent(socket, id) != null) {
+            System.out.printf("ZMonitor: Socket %s already monitored.%n", socket);
+            return this;
+        }
+        registry.put(id, socket);
+        // no reply, as events may already flow in the pipe
+        agent.send(ADD_SOCKET, true);
+        agent.send(Integer.toString(id), true);
+        agent.send(Integer.toString(evts));
+        return this;
+    }
+
+    /**
+     * Removes a monitored socket, at any time.
+     * The events of this socket already collected are still received, without their socket.
+     * @param socket the socket to stop monitoring.
+     * @return this instance.
+     */
+    public final ZMonitor remove(Socket socket)
+    {
+        final Integer id = sockets.remove(socket);
+        if (id == null) {
+            System.out.printf("ZMonitor: Socket %s not monitored.%n", socket);
+            return this;
+        }
+        // no reply, as events may already flow in the pipe
+        agent.send(REMOVE_SOCKET, true);
+        agent.send(Integer.toString(id));
+        registry.remove(id);
+        return this;
+    }
+
     /**
      * Gets the next event, blocking for it until available.
      * @return the next monitored event or null if closed.
@@ -226,7 +535,7 @@ public class ZMonitor implements Closeable
         if (msg == null) {
             return null;
         }
-        return new ZEvent(msg);
+        return new ZEvent(msg, registry, tagged);
     }
 
     /**
@@ -244,7 +553,7 @@ public class ZMonitor implements Closeable
         if (msg == null) {
             return null;
         }
-        return new ZEvent(msg);
+        return new ZEvent(msg, registry, tagged);
     }
 
     private static final String START         = "START";
@@ -252,20 +561,69 @@ public class ZMonitor implements Closeable
     private static final String VERBOSE       = "VERBOSE";
     private static final String ADD_EVENTS    = "ADD_EVENTS";
     private static final String REMOVE_EVENTS = "REMOVE_EVENTS";
+    private static final String BINARY        = "BINARY";
+    private static final String AGGREGATE     = "AGGREGATE";
+    private static final String ALERT         = "ALERT";
+    private static final String ADD_SOCKET    = "ADD_SOCKET";
+    private static final String REMOVE_SOCKET = "REMOVE_SOCKET";
+
+    // the identifier of the socket given at creation
+    private static final int MAIN = 0;
+
+    // kinds of values in the binary encoding
+    private static final byte NO_VALUE     = 0;
+    private static final byte INT_VALUE    = 1;
+    private static final byte STRING_VALUE = 2;
 
     private final ZAgent     agent;
     private final ZStar.Exit exit;
+    private final Statistics statistics = new Statistics();
+
+    // the monitored sockets by identifier, and their identifiers
+    private final Map<Integer, Socket> registry = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Socket, Integer> sockets = new ConcurrentHashMap<>();
+    private final AtomicInteger        ids      = new AtomicInteger(MAIN);
+    // can sockets be added, their events telling their socket?
+    private final boolean tagged;
 
     /**
      * Creates a monitoring actor for the given socket.
+     * No other socket can be {@link #add(Socket, Event...) added}.
      * @param ctx the context relative to this actor. Not null.
      * @param socket the socket to monitor for events. Not null.
      */
     public ZMonitor(ZContext ctx, Socket socket)
+    {
+        this(ctx, socket, false);
+    }
+
+    /**
+     * Creates a monitoring actor for many sockets, {@link #add(Socket, Event...) added} later.
+     * @param ctx the context relative to this actor. Not null.
+     */
+    public ZMonitor(ZContext ctx)
+    {
+        this(ctx, null, true);
+    }
+
+    /**
+     * Creates a monitoring actor for the given socket, and possibly others.
+     * @param ctx the context relative to this actor. Not null.
+     * @param socket the socket to monitor for events. Not null.
+     * @param multi true to {@link #add(Socket, Event...) add} other sockets later,
+     *              each event then telling the socket it came from (in an additional first frame of the messages),
+     *              false to keep the messages of a single socket.
+     */
+    public ZMonitor(ZContext ctx, Socket socket, boolean multi)
     {
         assert (ctx != null);
-        assert (socket != null);
-        final MonitorActor actor = new MonitorActor(socket);
+        assert (socket != null || multi);
+        this.tagged = multi;
+        if (socket != null) {
+            registry.put(MAIN, socket);
+            sockets.put(socket, MAIN);
+        }
+        final MonitorActor actor = new MonitorActor(socket, registry, statistics, multi);
         final ZActor zactor = new ZActor(ctx, actor, UUID.randomUUID().toString());
 
         agent = zactor.agent();
@@ -280,33 +638,74 @@ public class ZMonitor implements Closeable
         private static final String ERROR = "ERROR";
         private static final String OK    = "OK";
 
-        private final Socket monitored; // the monitored socket
-        private final String address;   // the address where events will be collected
+        // a monitored socket
+        private static final class Monitored
+        {
+            private final Socket socket;  // the monitored socket
+            private final String address; // the address where events will be collected
+            private final byte[] tag;     // the identifier of the socket in the sent events
+            private final int    events;  // the events to monitor, -1 for the default ones
+
+            private Socket monitor; // the monitoring socket
+
+            private Monitored(Socket socket, int id, int events)
+            {
+                this.socket = socket;
+                this.address = String.format("inproc://zmonitor-%s-%s", socket.hashCode(), UUID.randomUUID().toString());
+                this.tag = ByteBuffer.allocate(4).putInt(id).array();
+                this.events = events;
+            }
+        }
+
+        private final Monitored              main;     // the socket given at creation, possibly null
+        private final Map<Integer, Socket>   registry; // the sockets added at runtime, by identifier
+        private final Map<Integer, Monitored> ids      = new HashMap<>();
+        private final Map<Socket, Monitored>  monitors = new HashMap<>(); // by monitoring socket
+        private final boolean                 tagged;   // do the events tell their socket?
+
+        private ZContext ctx;
+        private int      events;  // the events to monitor
+        private boolean  verbose;
+        private boolean  binary;  // is the binary encoding used?
+        private int      window;  // the aggregation window in milliseconds, 0 to send every event
+        private boolean  started;
 
-        private Socket  monitor; // the monitoring socket
-        private int     events;  // the events to monitor
-        private boolean verbose;
+        // the thresholds of the alerts per type of event
+        private final int[]      thresholds = new int[Event.values().length];
+        private final Statistics statistics;
 
-        public MonitorActor(ZMQ.Socket socket)
+        // the reused received event
+        private final ZMQ.Event received = new ZMQ.Event();
+
+        // the buffer for the binary encoding
+        private final byte[]              buffer    = new byte[1024];
+        private final Map<String, byte[]> addresses = new HashMap<>();
+
+        public MonitorActor(ZMQ.Socket socket, Map<Integer, Socket> registry, Statistics statistics, boolean tagged)
         {
-            assert (socket != null);
-            this.monitored = socket;
-            this.address = String.format("inproc://zmonitor-%s-%s", socket.hashCode(), UUID.randomUUID().toString());
+            this.main = socket == null ? null : new Monitored(socket, MAIN, -1);
+            this.tagged = tagged;
+            this.registry = registry;
+            this.statistics = statistics;
         }
 
         @Override
         public String premiere(Socket pipe)
         {
-            return "ZMonitor-" + monitored.toString();
+            return "ZMonitor-" + (main == null ? "multi" : main.socket.toString());
         }
 
         @Override
         public List<Socket> createSockets(ZContext ctx, Object... args)
         {
-            monitor = ctx.createSocket(ZMQ.PAIR);
-            assert (monitor != null);
+            this.ctx = ctx;
+            if (main == null) {
+                return Collections.emptyList();
+            }
+            main.monitor = ctx.createSocket(ZMQ.PAIR);
+            assert (main.monitor != null);
 
-            return Collections.singletonList(monitor);
+            return Collections.singletonList(main.monitor);
         }
 
         @Override
@@ -318,7 +717,9 @@ public class ZMonitor implements Closeable
         @Override
         public boolean stage(Socket socket, Socket pipe, ZPoller poller, int evts)
         {
-            final ZMQ.Event event = ZMQ.Event.recv(socket);
+            final Monitored monitored = monitors.get(socket);
+            assert (monitored != null);
+            final ZMQ.Event event = ZMQ.Event.recv(socket, 0, received);
             assert (event != null);
             final int code = event.getEvent();
             final String address = event.getAddress();
@@ -326,41 +727,107 @@ public class ZMonitor implements Closeable
             final Event type = Event.find(code);
             assert (type != null);
 
+            if (window > 0) {
+                final int count = statistics.get(address).record(type, System.currentTimeMillis(), window);
+                final int threshold = thresholds[type.ordinal()];
+                if (threshold > 0 && count == threshold) {
+                    return send(pipe, monitored, type, code, address, threshold);
+                }
+                return true;
+            }
+            return send(pipe, monitored, type, code, address, event.getValue());
+        }
+
+        // sends an event to the pipe
+        private boolean send(Socket pipe, Monitored monitored, Event type, int code, String address, Object value)
+        {
+            if (binary) {
+                return sendBinary(pipe, monitored, code, address, value);
+            }
             final ZMsg msg = new ZMsg();
 
+            if (tagged) {
+                msg.add(monitored.tag);
+            }
             msg.add(type.name());
             msg.add(Integer.toString(code));
             msg.add(address);
 
-            final Object value = event.getValue();
             if (value != null) {
                 msg.add(value.toString());
             }
             return msg.send(pipe, true);
         }
 
+        // sends an event in one frame: socket, code, kind of value, integer value, address length, address, string value
+        private boolean sendBinary(Socket pipe, Monitored monitored, int code, String address, Object value)
+        {
+            byte[] addr = addresses.get(address);
+            if (addr == null) {
+                addr = address.getBytes(ZMQ.CHARSET);
+                addresses.put(address, addr);
+            }
+            byte[] string = null;
+            byte kind = NO_VALUE;
+            int number = 0;
+            if (value instanceof Integer) {
+                kind = INT_VALUE;
+                number = (Integer) value;
+            }
+            else if (value != null) {
+                kind = STRING_VALUE;
+                string = value.toString().getBytes(ZMQ.CHARSET);
+            }
+            final int length = 15 + addr.length + (string == null ? 0 : string.length);
+            final ByteBuffer buf = ByteBuffer.wrap(length <= buffer.length ? buffer : new byte[length]);
+            buf.put(monitored.tag);
+            buf.putInt(code);
+            buf.put(kind);
+            buf.putInt(number);
+            buf.putShort((short) addr.length);
+            buf.put(addr);
+            if (string != null) {
+                buf.put(string);
+            }
+            return pipe.send(buf.array(), 0, length, 0);
+        }
+
         @Override
         public boolean backstage(ZMQ.Socket pipe, ZPoller poller, int evts)
         {
             final String command = pipe.recvStr();
             if (command == null) {
-                System.out.printf("ZMonitor: Closing monitor %s : No command%n", monitored);
+                System.out.printf("ZMonitor: Closing monitor %s : No command%n", this);
                 return false;
             }
             switch (command) {
             case VERBOSE:
                 verbose = Boolean.parseBoolean(pipe.recvStr());
                 return pipe.send(OK);
+            case BINARY:
+                binary = Boolean.parseBoolean(pipe.recvStr());
+                return pipe.send(OK);
+            case AGGREGATE:
+                window = Integer.parseInt(pipe.recvStr());
+                return pipe.send(OK);
+            case ALERT:
+                final Event type = Event.valueOf(pipe.recvStr());
+                thresholds[type.ordinal()] = Integer.parseInt(pipe.recvStr());
+                return pipe.send(OK);
             case ADD_EVENTS:
                 return addEvents(pipe);
             case REMOVE_EVENTS:
                 return removeEvents(pipe);
+            case ADD_SOCKET:
+                return addSocket(pipe, poller);
+            case REMOVE_SOCKET:
+                return removeSocket(pipe, poller);
             case START:
                 return start(poller, pipe);
             case CLOSE:
                 return close(poller, pipe);
             default:
-                System.out.printf("ZMonitor: Closing monitor %s : Unknown command %s%n", monitored, command);
+                System.out.printf("ZMonitor: Closing monitor %s : Unknown command %s%n", this, command);
                 pipe.send(ERROR);
                 return false;
             }
@@ -400,23 +867,95 @@ public class ZMonitor implements Closeable
             return pipe.send(OK);
         }
 
-        private boolean start(ZPoller poller, Socket pipe)
+        // adds a socket to monitor, without reply as events may already flow in the pipe
+        private boolean addSocket(Socket pipe, ZPoller poller)
+        {
+            final int id = Integer.parseInt(pipe.recvStr());
+            final int evts = Integer.parseInt(pipe.recvStr());
+            final Socket socket = registry.get(id);
+            if (socket == null) {
+                // already removed
+                return true;
+            }
+            final Monitored monitored = new Monitored(socket, id, evts);
+            monitored.monitor = ctx.createSocket(ZMQ.PAIR);
+            ids.put(id, monitored);
+            if (started) {
+                activate(monitored, poller);
+            }
+            return true;
+        }
+
+        // removes a monitored socket, without reply as events may already flow in the pipe
+        private boolean removeSocket(Socket pipe, ZPoller poller)
+        {
+            final int id = Integer.parseInt(pipe.recvStr());
+            if (id == MAIN && main != null) {
+                // its monitoring socket is managed by the actor
+                deactivate(main, poller);
+                return true;
+            }
+            final Monitored monitored = ids.remove(id);
+            if (monitored != null) {
+                deactivate(monitored, poller);
+                ctx.destroySocket(monitored.monitor);
+            }
+            return true;
+        }
+
+        // starts monitoring a socket
+        private boolean activate(Monitored monitored, ZPoller poller)
         {
+            final int evts = monitored.events < 0 ? events : monitored.events;
             boolean rc = true;
             String err = "";
             if (rc) {
-                rc = monitored.monitor(address, events);
-                err = "Unable to monitor socket " + monitored;
+                rc = monitored.socket.monitor(monitored.address, evts);
+                err = "Unable to monitor socket " + monitored.socket;
             }
             if (rc) {
-                err = "Unable to connect monitoring socket " + monitor;
-                rc = monitor.connect(address);
+                err = "Unable to connect monitoring socket " + monitored.monitor;
+                rc = monitored.monitor.connect(monitored.address);
             }
             if (rc) {
-                err = "Unable to poll monitoring socket " + monitor;
-                rc = poller.register(monitor, ZPoller.IN);
+                err = "Unable to poll monitoring socket " + monitored.monitor;
+                rc = poller.register(monitored.monitor, ZPoller.IN);
+            }
+            if (rc) {
+                monitors.put(monitored.monitor, monitored);
+            }
+            log("tart", monitored, evts, rc, err);
+            return rc;
+        }
+
+        // stops monitoring a socket
+        private boolean deactivate(Monitored monitored, ZPoller poller)
+        {
+            if (monitors.remove(monitored.monitor) == null) {
+                // not started
+                return true;
+            }
+            final int evts = monitored.events < 0 ? events : monitored.events;
+            boolean rc = poller.unregister(monitored.monitor);
+            String err = "Unable to unregister monitoring socket " + monitored.monitor;
+            if (rc) {
+                err = "Unable to stop monitor socket " + monitored.socket;
+                rc = monitored.socket.monitor(null, evts);
+            }
+            log("top", monitored, evts, rc, err);
+            return rc;
+        }
+
+        private boolean start(ZPoller poller, Socket pipe)
+        {
+            started = true;
+            boolean rc = true;
+            if (main != null) {
+                rc = activate(main, poller);
+            }
+            for (Monitored monitored : ids.values()) {
+                rc &= activate(monitored, poller);
             }
-            log("tart", rc, err);
             if (rc) {
                 return pipe.send(OK);
             }
@@ -426,36 +965,42 @@ public class ZMonitor implements Closeable
 
         private boolean close(ZPoller poller, Socket pipe)
         {
-            boolean rc = poller.unregister(monitor);
-            String err = "Unable to unregister monitoring socket " + monitor;
-            if (rc) {
-                err = "Unable to stop monitor socket " + monitored;
-                rc = monitored.monitor(null, events);
+            boolean rc = true;
+            if (main != null) {
+                rc = deactivate(main, poller);
+            }
+            for (Monitored monitored : ids.values()) {
+                rc &= deactivate(monitored, poller);
             }
-            log("top", rc, err);
 
             if (verbose) {
-                System.out.printf("ZMonitor: Closing monitor %s%n", monitored);
+                System.out.printf("ZMonitor: Closing monitor %s%n", this);
             }
             pipe.send(rc ? OK : ERROR);
             return false;
         }
 
-        private void log(String action, boolean rc, String err)
+        private void log(String action, Monitored monitored, int evts, boolean rc, String err)
         {
             if (verbose) {
                 if (rc) {
-                    System.out.printf("ZMonitor: S%s monitor for events %s on %s%n", action, events, monitored);
+                    System.out.printf("ZMonitor: S%s monitor for events %s on %s%n", action, evts, monitored.socket);
                 }
                 else {
                     System.out.printf(
                                       "ZMonitor: Unable to s%s monitor for events %s (%s) on %s%n",
                                       action,
-                                      events,
+                                      evts,
                                       err,
-                                      monitored);
+                                      monitored.socket);
                 }
             }
         }
+
+        @Override
+        public String toString()
+        {
+            return main == null ? ids.size() + " sockets" : main.socket.toString();
+        }
     }
 }
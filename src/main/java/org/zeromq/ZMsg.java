@@ -310,7 +310,7 @@ public class ZMsg implements Iterable<ZFrame>, Deque<ZFrame>
                 while (++msgNbr <= msgSize) {
                     int frameSize = file.readInt();
                     byte[] data = new byte[frameSize];
-                    file.read(data);
+                    file.readFully(data);
                     rcvMsg.add(new ZFrame(data));
                 }
             }
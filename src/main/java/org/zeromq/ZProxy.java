@@ -1,9 +1,19 @@
 package org.zeromq;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.zeromq.ZActor.Actor;
 import org.zeromq.ZAgent.SelectorCreator;
@@ -28,6 +38,7 @@ import zmq.api.ASocket;
  *   <li>Pause:                                 <b><i>lets the socket queues accumulate messages according to their types</i></b>
  *   <li>Stop:                                  <i>Shutdowns the proxy, can be restarted</i>
  *   <li>Status:                                <i>Retrieves the status of the proxy</i>
+ *   <li>{@link #statistics() Statistics}:      <i>Retrieves the throughput and latency statistics of the proxy</i>
  *   <li>Cold Restart:                          <i>Closes and recreates the connections</i>
  *   <li>{@link #restart(ZMsg) Hot Restart}:    <i>User-defined behavior with custom messages</i>
  *   <li>{@link #configure(ZMsg) Configure}:    <i>User-defined behavior with custom messages</i>
@@ -41,6 +52,10 @@ import zmq.api.ASocket;
  *    <ul>
  *      <li>with built-in low-level {@link org.zeromq.ZProxy.ZmqPump} (zmq.ZMQ): useful for performances
  *      <li>with built-in high-level  {@link org.zeromq.ZProxy.ZPump}  (ZeroMQ): useful for {@link org.zeromq.ZProxy.ZPump.Transformer message transformation}, lower performances
+ *      <li>with built-in low-level {@link org.zeromq.ZProxy.TapPump} (zmq.ZMQ): useful for a capture that never slows down the live path
+ *      <li>with built-in low-level {@link org.zeromq.ZProxy.RoutingPump} (zmq.ZMQ): useful for content-based routing to several backends
+ *      <li>with built-in low-level {@link org.zeromq.ZProxy.ShapingPump} (zmq.ZMQ): useful for rate limiting the traffic of each plug
+ *      <li>with built-in low-level {@link org.zeromq.ZProxy.RecordingPump} (zmq.ZMQ): useful for recording the traffic, to be {@link org.zeromq.ZProxy.Replayer replayed} later
  *      <li>with your own-custom proxy pump implementing a {@link Pump 1-method interface}
  *    </ul>
  * </ul><p>
@@ -112,6 +127,9 @@ import zmq.api.ASocket;
  * <p></pre>
  *
  * A {@link #command(Command, boolean) programmatic interface} with enums is also available.
+ * <br/>
+ * Optionally, the start, pause, stop and status commands can be {@link #typed(boolean) transmitted as typed commands}
+ * through a lock-free channel, the control pipe only carrying a one-byte wake-up frame.
  *
  *
  */
@@ -272,6 +290,38 @@ public class ZProxy
         return new ZProxy(ctx, name, null, sockets, new ZmqPump(), motdelafin, args);
     }
 
+    /**
+     * Creates a new parallel proxy, made of several low-level proxies each running in its own thread.
+     * <p>
+     * Each worker owns its frontend and backend sockets, created by the sockets creator with a {@link Worker}
+     * appended as last argument, so that the creator can for example connect them to inproc fan-in endpoints
+     * or bind them on distinct endpoints.
+     * <br/>
+     * The returned proxy is controlled like any other one: each command is transmitted to all the workers,
+     * and the reported status is the least advanced one amongst them.
+     * The statistics of all the workers are aggregated in the ones of the proxy.
+     *
+     * @param ctx        the context used for the proxy.
+     * Possibly null, in this case a new context will be created and automatically destroyed afterwards.
+     * @param name       the name of the proxy. Possibly null.
+     * @param sockets    the sockets creator of the workers. Not null.
+     * @param workers    the number of workers, each one with its own thread. Strictly positive.
+     * @param args       an optional array of arguments that will be passed at the creation.
+     *
+     * @return the created proxy.
+     */
+    // creates a new multi-workers low-level proxy
+    public static ZProxy newParallelProxy(ZContext ctx, String name, Proxy sockets, int workers, String motdelafin,
+                                          Object... args)
+    {
+        assert (workers > 0);
+        // all the workers share the statistics of the proxy
+        Statistics statistics = new Statistics();
+        Control control = new Control();
+        Actor actor = new ParallelActor(name, workers, counter.incrementAndGet(), statistics, control);
+        return new ZProxy(ctx, null, sockets, actor, statistics, control, motdelafin, args);
+    }
+
     /**
      * Starts the proxy.
      *
@@ -280,6 +330,9 @@ public class ZProxy
      */
     public String start(boolean sync)
     {
+        if (typed) {
+            return control(Command.START, sync).name();
+        }
         return command(START, sync);
     }
 
@@ -295,6 +348,9 @@ public class ZProxy
      */
     public String pause(boolean sync)
     {
+        if (typed) {
+            return control(Command.PAUSE, sync).name();
+        }
         return command(PAUSE, sync);
     }
 
@@ -306,22 +362,27 @@ public class ZProxy
      */
     public String stop(boolean sync)
     {
+        if (typed) {
+            return control(Command.STOP, sync).name();
+        }
         return command(STOP, sync);
     }
 
     /**
      * Sends a command message to the proxy actor.
      * Can be useful for programmatic interfaces.
-     * Does not works with commands {@link #CONFIG CONFIG} and {@link #RESTART RESTART}.
+     * Does not works with commands {@link #CONFIG CONFIG}, {@link #RESTART RESTART} and {@link #STATS STATS}.
      *
      * @param command  the command to execute. Not null.
      * @param sync     true to read the status in synchronous way, false for asynchronous mode
-     * @return the read status
+     * @return the read status,
+     * or in synchronous mode the reply starting with {@link #ERROR ERROR} of a rejected command
      */
     public String command(String command, boolean sync)
     {
         assert (!CONFIG.equals(command));
         assert (!RESTART.equals(command));
+        assert (!STATS.equals(command));
         if (STATUS.equals(command)) {
             return status(sync);
         }
@@ -333,8 +394,10 @@ public class ZProxy
 
         if (agent.send(command)) {
             // the pipe is refilled
-            if (sync) {
-                status = status(true);
+            if (sync || typed) {
+                final String reply = recvStatus();
+                // a rejected command is reported instead of the status
+                status = queued(reply, !reply.startsWith(ERROR));
             }
         }
         return status;
@@ -343,7 +406,7 @@ public class ZProxy
     /**
      * Sends a command message to the proxy actor.
      * Can be useful for programmatic interfaces.
-     * Does not works with commands {@link Command#CONFIG CONFIG} and {@link Command#RESTART RESTART}.
+     * Does not works with commands {@link Command#CONFIG CONFIG}, {@link Command#RESTART RESTART} and {@link Command#STATS STATS}.
      *
      * @param command  the command to execute.
      * @param sync     true to read the status in synchronous way, false for asynchronous mode
@@ -351,13 +414,24 @@ public class ZProxy
      */
     public State command(Command command, boolean sync)
     {
+        if (typed) {
+            switch (command) {
+            case START:
+            case PAUSE:
+            case STOP:
+            case STATUS:
+                return control(command, sync);
+            default:
+                break;
+            }
+        }
         return State.valueOf(command(command.name(), sync));
     }
 
     /**
      * Sends a command message to the proxy actor.
      * Can be useful for programmatic interfaces.
-     * Works only with commands {@link Command#CONFIG CONFIG} and {@link Command#RESTART RESTART}.
+     * Works only with commands {@link Command#CONFIG CONFIG}, {@link Command#RESTART RESTART} and {@link Command#STATS STATS}.
      *
      * @param command  the command to execute.
      * @param msg      the custom message to transmit.
@@ -375,9 +449,47 @@ public class ZProxy
             msg.add(status);
             return msg;
         }
+        if (command == Command.STATS) {
+            return stats();
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the statistics of the proxy via the control pipe.
+     * The reply is made of one frame for the name of each {@link Plug} followed by five frames
+     * with the count of messages, frames, bytes and send failures, and the time in nanoseconds spent in sending;
+     * then the frame LATENCY followed by five frames with the count, the median, the 99th and 99.9th percentiles
+     * and the maximum of the forward latency in nanoseconds.
+     *
+     * @return the statistics message, or null if the proxy exited.
+     */
+    public ZMsg stats()
+    {
+        if (agent.send(STATS)) {
+            // consume the status in the pipe
+            recvStatus();
+
+            ZMsg reply = agent.recv();
+
+            // refill the pipe with status
+            agent.send(STATUS);
+            return reply;
+        }
         return null;
     }
 
+    /**
+     * Returns the live statistics of the proxy.
+     * The counters are updated by the proxy thread without locking and can be read at any time from any thread.
+     *
+     * @return the statistics of the proxy. Never null.
+     */
+    public Statistics statistics()
+    {
+        return statistics;
+    }
+
     /**
      * Configures the proxy.
      * The distant side has to send back one (1) mandatory response message.
@@ -425,7 +537,7 @@ public class ZProxy
 
         String status = EXITED;
         if (agent.send(msg)) {
-            status = status(false);
+            status = piped(false);
         }
         return status;
     }
@@ -475,13 +587,110 @@ public class ZProxy
      * If false, you get the last cached status of the proxy
      */
     public String status(boolean sync)
+    {
+        if (typed) {
+            return control(Command.STATUS, sync).name();
+        }
+        return piped(sync);
+    }
+
+    /**
+     * Transmits the start, pause, stop and status commands as typed commands through a lock-free channel
+     * instead of the control pipe, sparing their encoding and the round-trips of the pipe.
+     * Disabled by default.
+     * <p>
+     * Once enabled, the asynchronous calls return the last state replied by the channel,
+     * and the commands still transmitted through the pipe read their status synchronously
+     * so that both report the same state.
+     * <br/>
+     * Shall be called by the thread controlling the proxy.
+     *
+     * @param enable true to use the typed channel, false to use the control pipe.
+     * @return this instance.
+     */
+    public ZProxy typed(boolean enable)
+    {
+        if (typed && !enable) {
+            // the replies of the channel are not read anymore
+            while (pending > 0 && await()) {
+                // collect them before switching
+            }
+        }
+        typed = enable;
+        return this;
+    }
+
+    // transmits a typed command through the control channel
+    private State control(Command command, boolean sync)
+    {
+        if (exit.isExited()) {
+            return State.EXITED;
+        }
+        // collect the replies of the previous asynchronous commands
+        while (pending > 0) {
+            final State state = control.replies.poll();
+            if (state == null) {
+                break;
+            }
+            --pending;
+            last = state;
+        }
+        while (!control.commands.offer(command)) {
+            // the actor has not consumed the previous commands yet
+            if (pending > 0) {
+                if (!await()) {
+                    return State.EXITED;
+                }
+            }
+            else if (exit.isExited()) {
+                return State.EXITED;
+            }
+            else {
+                Thread.yield();
+            }
+        }
+        ++pending;
+        if (sync) {
+            // wait for the reply of this command
+            while (pending > 0) {
+                if (!await()) {
+                    return State.EXITED;
+                }
+            }
+        }
+        return last;
+    }
+
+    // waits for the next reply of the control channel
+    private boolean await()
+    {
+        State state = null;
+        while (state == null) {
+            state = control.replies.take(10, TimeUnit.MILLISECONDS);
+            if (state == null && exit.isExited()) {
+                last = State.EXITED;
+                return false;
+            }
+        }
+        --pending;
+        last = state;
+        return true;
+    }
+
+    // inquires for the status of the proxy via the control pipe
+    private String piped(boolean sync)
     {
         if (exit.isExited()) {
             return EXITED;
         }
-        try {
-            String status = recvStatus();
+        // with the typed channel, the status queued in the pipe may be outdated
+        return queued(recvStatus(), sync || typed);
+    }
 
+    // refills the pipe with a status after having consumed the given one
+    private String queued(String status, boolean sync)
+    {
+        try {
             if (agent.send(STATUS) && sync) {
                 // wait for the response to emulate sync
                 status = recvStatus();
@@ -489,6 +698,9 @@ public class ZProxy
                 if (EXITED.equals(status) || !agent.send(STATUS)) {
                     return EXITED;
                 }
+                if (typed) {
+                    last = State.valueOf(status);
+                }
             }
             return status;
         }
@@ -541,7 +753,8 @@ public class ZProxy
         RESTART,
         EXIT,
         STATUS,
-        CONFIG
+        CONFIG,
+        STATS
     }
 
     // commands for the control pipe
@@ -552,6 +765,7 @@ public class ZProxy
     private static final String EXIT    = Command.EXIT.name();
     private static final String STATUS  = Command.STATUS.name();
     private static final String CONFIG  = Command.CONFIG.name();
+    private static final String STATS   = Command.STATS.name();
 
     // to handle states in a more java-centric way
     public enum State
@@ -570,6 +784,8 @@ public class ZProxy
     public static final String EXITED  = State.EXITED.name();
     // defines the very first time where no command changing the state has been issued
     public static final String ALIVE = State.ALIVE.name();
+    // prefixes the reply of a rejected command
+    public static final String ERROR = "ERROR";
 
     private static final AtomicInteger counter = new AtomicInteger();
 
@@ -579,6 +795,18 @@ public class ZProxy
     // the synchronizer for exiting
     private final Exit exit;
 
+    // the statistics updated by the proxy
+    private final Statistics statistics;
+
+    // the typed control channel to the distant proxy actor
+    private final Control control;
+    // the number of commands sent without received reply yet
+    private int pending;
+    // the last received state
+    private State last = State.ALIVE;
+    // are the start, pause, stop and status commands transmitted through the typed channel?
+    private boolean typed;
+
     /**
      * Creates a new unnamed proxy.
      *
@@ -615,13 +843,35 @@ public class ZProxy
      */
     public ZProxy(ZContext ctx, String name, SelectorCreator selector, Proxy sockets, Pump pump, String motdelafin,
             Object... args)
+    {
+        this(ctx, selector, sockets, new Statistics(), pump == null ? new ZmqPump() : pump, name,
+                counter.incrementAndGet(), motdelafin, args);
+    }
+
+    // creates a proxy with the given statistics
+    private ZProxy(ZContext ctx, SelectorCreator selector, Proxy sockets, Statistics statistics, Pump pump,
+            String name, int id, String motdelafin, Object[] args)
+    {
+        this(ctx, selector, sockets, statistics, new Control(), pump, name, id, motdelafin, args);
+    }
+
+    // creates a proxy with the given statistics and control channel
+    private ZProxy(ZContext ctx, SelectorCreator selector, Proxy sockets, Statistics statistics, Control control,
+            Pump pump, String name, int id, String motdelafin, Object[] args)
+    {
+        this(ctx, selector, sockets, new ProxyActor(name, pump, id, statistics, control), statistics, control,
+                motdelafin, args);
+    }
+
+    // creates a proxy controlling the given actor
+    private ZProxy(ZContext ctx, SelectorCreator selector, Proxy sockets, Actor actor, Statistics statistics,
+            Control control, String motdelafin, Object[] args)
     {
         super();
+        this.statistics = statistics;
+        this.control = control;
 
         // arguments parsing
-        if (pump == null) {
-            pump = new ZmqPump();
-        }
         int count = 1;
         count += args.length;
 
@@ -640,8 +890,6 @@ public class ZProxy
         }
 
         // handle the actor
-        int id = counter.incrementAndGet();
-        Actor actor = new ProxyActor(name, pump, id);
         if (shadow != null) {
             actor = new ZActor.Duo(actor, shadow);
         }
@@ -649,6 +897,57 @@ public class ZProxy
         ZActor zactor = new ZActor(ctx, selector, actor, motdelafin, vars);
         agent = zactor.agent(); // NB: the zactor is also its own agent
         exit = zactor.exit();
+        control.agent = agent;
+    }
+
+    // the typed control channel between a proxy and its actor
+    private static final class Control implements ZAgent.Channel.Signal
+    {
+        // the maximum number of commands without reply
+        private static final int CAPACITY = 64;
+
+        // the commands sent to the actor, waking up its poller
+        private final ZAgent.Channel<Command> commands = new ZAgent.Channel<>(CAPACITY, this);
+        // the states replied by the actor
+        private final ZAgent.Channel<State> replies = new ZAgent.Channel<>(CAPACITY);
+
+        // the agent of the actor, set once the actor is created
+        private ZAgent agent;
+
+        @Override
+        public void wake()
+        {
+            agent.send(ZAgent.Channel.WAKEUP);
+        }
+    }
+
+    /**
+     * Identifies one of the workers of a {@link ZProxy#newParallelProxy(ZContext, String, Proxy, int, String, Object...) parallel proxy}.
+     * Given as the last argument to the sockets creator of each worker.
+     */
+    public static final class Worker
+    {
+        /**
+         * The index of the worker, from 0 to count - 1.
+         */
+        public final int index;
+
+        /**
+         * The total number of workers of the proxy.
+         */
+        public final int count;
+
+        private Worker(int index, int count)
+        {
+            this.index = index;
+            this.count = count;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Worker [index=" + index + ", count=" + count + "]";
+        }
     }
 
     // defines a pump that will flow messages from one socket to another
@@ -668,110 +967,423 @@ public class ZProxy
         boolean flow(Plug src, Socket source, Socket capture, Plug dst, Socket destination);
     }
 
-    // acts in background to proxy messages
-    private static final class ProxyActor extends ZActor.SimpleActor
+    // defines a pump able to report the details of its transfers
+    public interface MeteredPump extends Pump
     {
-        // the states container of the proxy
-        private static final class State
-        {
-            @Override
-            public String toString()
-            {
-                return "State [alive=" + alive + ", started=" + started + ", paused=" + paused + ", restart=" + restart
-                        + ", hot=" + hot + "]";
-            }
-
-            // are we alive ?
-            private boolean alive = false;
-            // are we started ?
-            private boolean started = false;
-            // are we paused ?
-            private boolean paused = false;
-
-            // controls creation of a new agent if asked of a cold restart
-            private boolean restart = false;
-            // one-shot configuration for hot restart
-            private ZMsg hot;
-        }
-
-        // the state of the proxy
-        private final State state = new State();
+        /**
+         * Transfers a message from one source to one destination, with an optional capture,
+         * while updating the meters of the destination and capture plugs.
+         * The proxy takes care of the forward latency.
+         *
+         * @param src           the plug of the source socket
+         * @param source        the socket where to receive the message from.
+         * @param capture       the optional sockets where to send the message to. Possibly null.
+         * @param dst           the plug of the destination socket
+         * @param destination   the socket where to send the message to.
+         * @param stats         the statistics to update. Not null.
+         *
+         * @return false in case of error or interruption, true if successfully transferred the message
+         */
+        boolean flow(Plug src, Socket source, Socket capture, Plug dst, Socket destination, Statistics stats);
+    }
 
-        // used to transfer message from one socket to another
-        private final Pump transport;
+    // defines a pump that can be configured at runtime via the control pipe
+    public interface ConfigurablePump extends Pump
+    {
+        /**
+         * Configures the pump with a custom message received by the proxy via its {@link ZProxy#configure(ZMsg) CONFIG} command.
+         * Called in the proxy thread, before the {@link Proxy#configure(Socket, ZMsg, Socket, Socket, Socket, Object...) sockets creator}.
+         *
+         * Note: if the message is handled, you need to send one (1) mandatory custom response message with the pipe before the end of this call.
+         *
+         * @param pipe  the control pipe
+         * @param cfg   the custom configuration message sent by the control
+         * @return true if the message was handled by the pump, false to let the sockets creator handle it. In the latter case, the message shall be left untouched.
+         */
+        boolean configure(Socket pipe, ZMsg cfg);
+    }
 
-        // the nice name of the proxy
-        private final String name;
+    /**
+     * The statistics of a proxy, made of one {@link Meter} for each {@link Plug}
+     * and of the {@link Histogram} of the forward latency.
+     * All the counters are lock-free and can be read from any thread while the proxy is running.
+     */
+    public static final class Statistics
+    {
+        private final Meter[]   meters = new Meter[Plug.values().length];
+        private final Histogram latency = new Histogram();
 
-        // the provider of the sockets
-        private Proxy provider;
+        public Statistics()
+        {
+            for (int index = 0; index < meters.length; ++index) {
+                meters[index] = new Meter();
+            }
+        }
 
-        // the sockets creator user arguments
-        private Object[] args;
+        /**
+         * @param plug the plug to get the meter of.
+         * @return the meter of the messages sent to the given plug.
+         */
+        public Meter meter(Plug plug)
+        {
+            return meters[plug.ordinal()];
+        }
 
-        private Socket frontend;
-        private Socket backend;
-        private Socket capture;
+        /**
+         * @return the histogram of the time in nanoseconds to forward a message from one plug to another.
+         */
+        public Histogram latency()
+        {
+            return latency;
+        }
 
-        // creates a new Proxy actor.
-        public ProxyActor(String name, Pump transport, int id)
+        // the statistics in a message
+        private ZMsg msg()
         {
-            if (name == null) {
-                // default basic name
-                this.name = String.format("ZProxy-%sd", id);
+            ZMsg msg = new ZMsg();
+            for (Plug plug : Plug.values()) {
+                final Meter meter = meter(plug);
+                msg.add(plug.name());
+                msg.add(Long.toString(meter.messages()));
+                msg.add(Long.toString(meter.frames()));
+                msg.add(Long.toString(meter.bytes()));
+                msg.add(Long.toString(meter.failures()));
+                msg.add(Long.toString(meter.blocked()));
             }
-            else {
-                this.name = name;
-            }
-            this.transport = transport;
+            msg.add("LATENCY");
+            msg.add(Long.toString(latency.count()));
+            msg.add(Long.toString(latency.percentile(50)));
+            msg.add(Long.toString(latency.percentile(99)));
+            msg.add(Long.toString(latency.percentile(99.9)));
+            msg.add(Long.toString(latency.max()));
+            return msg;
         }
 
         @Override
-        public String premiere(Socket pipe)
+        public String toString()
         {
-            ZMsg reply = new ZMsg();
-            reply.add(ALIVE);
-            reply.send(pipe);
+            return "Statistics [front=" + meter(Plug.FRONT) + ", back=" + meter(Plug.BACK) + ", capture="
+                    + meter(Plug.CAPTURE) + ", latency=" + latency + "]";
+        }
+    }
 
-            return name;
+    /**
+     * Counters of the traffic sent to one plug of a proxy.
+     */
+    public static final class Meter
+    {
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong frames   = new AtomicLong();
+        private final AtomicLong bytes    = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong blocked  = new AtomicLong();
+
+        /**
+         * @return the number of messages sent.
+         */
+        public long messages()
+        {
+            return messages.get();
         }
 
-        // creates the sockets before the start of the proxy
-        @Override
-        public List<Socket> createSockets(ZContext ctx, Object... args)
+        /**
+         * @return the number of frames sent.
+         */
+        public long frames()
         {
-            provider = (Proxy) args[0];
+            return frames.get();
+        }
 
-            this.args = new Object[args.length - 1];
-            System.arraycopy(args, 1, this.args, 0, this.args.length);
+        /**
+         * @return the number of bytes sent.
+         */
+        public long bytes()
+        {
+            return bytes.get();
+        }
 
-            frontend = provider.create(ctx, Plug.FRONT, this.args);
-            capture = provider.create(ctx, Plug.CAPTURE, this.args);
-            backend = provider.create(ctx, Plug.BACK, this.args);
+        /**
+         * @return the number of messages that could not be sent.
+         */
+        public long failures()
+        {
+            return failures.get();
+        }
 
-            assert (frontend != null);
-            assert (backend != null);
+        /**
+         * @return the time in nanoseconds spent in sending, including the time blocked by the high-water mark.
+         */
+        public long blocked()
+        {
+            return blocked.get();
+        }
 
-            return Arrays.asList(frontend, backend);
+        /**
+         * Records frames that have been sent.
+         *
+         * @param count  the number of frames.
+         * @param size   the size of the frames in bytes.
+         * @param nanos  the time spent in sending.
+         */
+        public void sent(int count, long size, long nanos)
+        {
+            frames.addAndGet(count);
+            bytes.addAndGet(size);
+            blocked.addAndGet(nanos);
         }
 
-        @Override
-        public void start(Socket pipe, List<Socket> sockets, ZPoller poller)
+        /**
+         * Records the outcome of a message transfer.
+         *
+         * @param success true if the message has been sent, false in case of failure.
+         */
+        public void message(boolean success)
         {
-            // init the state machine
-            state.alive = true;
-            state.restart = false;
+            if (success) {
+                messages.incrementAndGet();
+            }
+            else {
+                failures.incrementAndGet();
+            }
         }
 
-        // Process a control message
         @Override
-        public boolean backstage(Socket pipe, ZPoller poller, int events)
+        public String toString()
         {
-            assert (state.hot == null);
+            return "Meter [messages=" + messages + ", frames=" + frames + ", bytes=" + bytes + ", failures=" + failures
+                    + ", blocked=" + blocked + "]";
+        }
+    }
+
+    /**
+     * A lock-free histogram of positive values, with a logarithmic scale of buckets
+     * each divided linearly in 8 sub-buckets, giving a precision of about 12.5% on the whole range of long values.
+     */
+    public static final class Histogram
+    {
+        // bits of the linear sub-buckets
+        private static final int SUB_BITS = 3;
+        private static final int SUB      = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(Long.SIZE << SUB_BITS);
+        private final AtomicLong      count  = new AtomicLong();
+        private final AtomicLong      max    = new AtomicLong();
+
+        /**
+         * Records a value.
+         *
+         * @param value the value to record. Negative values are recorded as 0.
+         */
+        public void record(long value)
+        {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * @return the number of recorded values.
+         */
+        public long count()
+        {
+            return count.get();
+        }
+
+        /**
+         * @return the maximum of the recorded values.
+         */
+        public long max()
+        {
+            return max.get();
+        }
+
+        /**
+         * Returns the value under which the given percentage of recorded values fall.
+         *
+         * @param percent the percentage, between 0 and 100.
+         * @return the upper bound of the bucket containing the percentile, 0 if no value was recorded.
+         */
+        public long percentile(double percent)
+        {
+            final long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percent * total / 100));
+            long cumulated = 0;
+            for (int index = 0; index < counts.length(); ++index) {
+                cumulated += counts.get(index);
+                if (cumulated >= rank) {
+                    return Math.min(upper(index), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        // the bucket of a value
+        private static int index(long value)
+        {
+            if (value < SUB) {
+                return (int) value;
+            }
+            final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (exponent - SUB_BITS)) & (SUB - 1));
+        }
+
+        // the highest value of a bucket
+        private static long upper(int index)
+        {
+            if (index < SUB) {
+                return index;
+            }
+            final int shift = (index >> SUB_BITS) - 1;
+            return ((SUB + (index & (SUB - 1L))) << shift) + (1L << shift) - 1;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Histogram [count=" + count() + ", p50=" + percentile(50) + ", p99=" + percentile(99) + ", max="
+                    + max() + "]";
+        }
+    }
+
+    // acts in background to proxy messages
+    private static final class ProxyActor extends ZActor.SimpleActor
+    {
+        // the states container of the proxy
+        private static final class State
+        {
+            @Override
+            public String toString()
+            {
+                return "State [alive=" + alive + ", started=" + started + ", paused=" + paused + ", restart=" + restart
+                        + ", hot=" + hot + "]";
+            }
+
+            // are we alive ?
+            private boolean alive = false;
+            // are we started ?
+            private boolean started = false;
+            // are we paused ?
+            private boolean paused = false;
+
+            // controls creation of a new agent if asked of a cold restart
+            private boolean restart = false;
+            // one-shot configuration for hot restart
+            private ZMsg hot;
+        }
+
+        // the state of the proxy
+        private final State state = new State();
+
+        // used to transfer message from one socket to another
+        private final Pump transport;
+
+        // the nice name of the proxy
+        private final String name;
+
+        // the provider of the sockets
+        private Proxy provider;
+
+        // the sockets creator user arguments
+        private Object[] args;
+
+        private Socket frontend;
+        private Socket backend;
+        private Socket capture;
+
+        // the ring of captured messages, if the transport is tapping the flow
+        private final Tap tap;
+        // is the capture socket polled for writing the pending captured messages ?
+        private boolean draining;
+
+        // the statistics of the transfers
+        private final Statistics stats;
+
+        // the rate limiter, if the transport is shaping the flow
+        private final ShapingPump shaper;
+        // the plugs no more polled until their rate limit allows it
+        private final boolean[] throttled = new boolean[Plug.values().length];
+
+        // the typed control channel
+        private final Control control;
+        // has the exit already been reported through the control channel?
+        private boolean reported;
+
+        // creates a new Proxy actor.
+        public ProxyActor(String name, Pump transport, int id, Statistics stats, Control control)
+        {
+            if (name == null) {
+                // default basic name
+                this.name = String.format("ZProxy-%sd", id);
+            }
+            else {
+                this.name = name;
+            }
+            this.transport = transport;
+            this.tap = transport instanceof TapPump ? ((TapPump) transport).tap : null;
+            this.stats = stats;
+            this.shaper = transport instanceof ShapingPump ? (ShapingPump) transport : null;
+            this.control = control;
+        }
+
+        @Override
+        public String premiere(Socket pipe)
+        {
+            ZMsg reply = new ZMsg();
+            reply.add(ALIVE);
+            reply.send(pipe);
+
+            return name;
+        }
+
+        // creates the sockets before the start of the proxy
+        @Override
+        public List<Socket> createSockets(ZContext ctx, Object... args)
+        {
+            provider = (Proxy) args[0];
+
+            this.args = new Object[args.length - 1];
+            System.arraycopy(args, 1, this.args, 0, this.args.length);
+
+            frontend = provider.create(ctx, Plug.FRONT, this.args);
+            capture = provider.create(ctx, Plug.CAPTURE, this.args);
+            backend = provider.create(ctx, Plug.BACK, this.args);
+
+            assert (frontend != null);
+            assert (backend != null);
+
+            return Arrays.asList(frontend, backend);
+        }
+
+        @Override
+        public void start(Socket pipe, List<Socket> sockets, ZPoller poller)
+        {
+            // init the state machine
+            state.alive = true;
+            state.restart = false;
+            Arrays.fill(throttled, false);
+        }
+
+        // Process a control message
+        @Override
+        public boolean backstage(Socket pipe, ZPoller poller, int events)
+        {
+            assert (state.hot == null);
 
             String cmd = pipe.recvStr();
             // a message has been received from the API
-            if (START.equals(cmd)) {
+            if (ZAgent.Channel.WAKEUP.equals(cmd)) {
+                return control(poller);
+            }
+            else if (START.equals(cmd)) {
                 if (start(poller)) {
                     return status().send(pipe);
                 }
@@ -797,39 +1409,90 @@ public class ZProxy
             }
             else if (CONFIG.equals(cmd)) {
                 ZMsg cfg = ZMsg.recvMsg(pipe);
-                boolean rc = provider.configure(pipe, cfg, frontend, backend, capture, args);
+                boolean rc;
+                if (transport instanceof ConfigurablePump && ((ConfigurablePump) transport).configure(pipe, cfg)) {
+                    rc = true;
+                }
+                else {
+                    rc = provider.configure(pipe, cfg, frontend, backend, capture, args);
+                }
                 cfg.destroy();
                 return rc;
             }
+            else if (STATS.equals(cmd)) {
+                return stats.msg().send(pipe);
+            }
             else if (EXIT.equals(cmd)) {
                 // stops the proxy and the agent.
                 // the status will be sent at the end of the loop
                 state.restart = false;
             }
+            else if (shaper != null && ShapingPump.shaping(cmd)) {
+                if (shaper.command(cmd)) {
+                    return status().send(pipe);
+                }
+                return pipe.send(ERROR + ' ' + cmd);
+            }
             else {
                 return provider.custom(pipe, cmd, frontend, backend, capture, args);
             }
             return false;
         }
 
+        // processes the typed commands of the control channel
+        private boolean control(ZPoller poller)
+        {
+            control.commands.acknowledge();
+            Command command = control.commands.poll();
+            while (command != null) {
+                switch (command) {
+                case START:
+                    if (!start(poller)) {
+                        // unable to start the proxy, exit
+                        state.restart = false;
+                        control.replies.offer(ZProxy.State.EXITED);
+                        reported = true;
+                        return false;
+                    }
+                    break;
+                case PAUSE:
+                    pause(poller, true);
+                    break;
+                case STOP:
+                    stop();
+                    break;
+                default:
+                    break;
+                }
+                control.replies.offer(state());
+                command = control.commands.poll();
+            }
+            return true;
+        }
+
         // returns the status
         private ZMsg status()
         {
             ZMsg reply = new ZMsg();
+            reply.add(state().name());
+            return reply;
+        }
+
+        // returns the state
+        private ZProxy.State state()
+        {
             if (!state.alive) {
-                reply.add(EXITED);
+                return ZProxy.State.EXITED;
             }
             else if (state.paused) {
-                reply.add(PAUSED);
+                return ZProxy.State.PAUSED;
             }
             else if (state.started) {
-                reply.add(STARTED);
+                return ZProxy.State.STARTED;
             }
             else {
-                reply.add(STOPPED);
+                return ZProxy.State.STOPPED;
             }
-
-            return reply;
         }
 
         // starts the proxy sockets
@@ -860,6 +1523,7 @@ public class ZProxy
         private boolean pause(ZPoller poller, boolean pause)
         {
             state.paused = pause;
+            Arrays.fill(throttled, false);
             if (pause) {
                 poller.unregister(frontend);
                 poller.unregister(backend);
@@ -905,22 +1569,101 @@ public class ZProxy
         public long looping(Socket pipe, ZPoller poller)
         {
             state.hot = null;
-            return super.looping(pipe, poller);
+            long timeout = super.looping(pipe, poller);
+            if (shaper != null) {
+                timeout = unthrottle(Plug.FRONT, frontend, poller, timeout);
+                timeout = unthrottle(Plug.BACK, backend, poller, timeout);
+            }
+            return timeout;
+        }
+
+        // stops polling the source socket if its rate limit is reached
+        private void throttle(Plug plug, Socket source, ZPoller poller)
+        {
+            if (!throttled[plug.ordinal()] && shaper.delay(plug) > 0) {
+                poller.unregister(source);
+                throttled[plug.ordinal()] = true;
+            }
+        }
+
+        // polls again the source socket once its rate limit allows it, or returns the time to wait for it
+        private long unthrottle(Plug plug, Socket source, ZPoller poller, long timeout)
+        {
+            if (!throttled[plug.ordinal()]) {
+                return timeout;
+            }
+            final long delay = shaper.delay(plug);
+            if (delay == 0) {
+                throttled[plug.ordinal()] = false;
+                if (state.started && !state.paused) {
+                    poller.register(source, ZPoller.POLLIN);
+                }
+                return timeout;
+            }
+            // at least one millisecond
+            final long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay));
+            return timeout < 0 ? millis : Math.min(timeout, millis);
         }
 
         // a message has been received for the proxy to process
         @Override
         public boolean stage(Socket socket, Socket pipe, ZPoller poller, int events)
         {
+            boolean rc = false;
             if (socket == frontend) {
                 //  Process a request.
-                return transport.flow(Plug.FRONT, frontend, capture, Plug.BACK, backend);
+                rc = flow(Plug.FRONT, frontend, Plug.BACK, backend);
+                if (shaper != null) {
+                    throttle(Plug.FRONT, frontend, poller);
+                }
             }
-            if (socket == backend) {
+            else if (socket == backend) {
                 //  Process a reply.
-                return transport.flow(Plug.BACK, backend, capture, Plug.FRONT, frontend);
+                rc = flow(Plug.BACK, backend, Plug.FRONT, frontend);
+                if (shaper != null) {
+                    throttle(Plug.BACK, backend, poller);
+                }
+            }
+            else if (socket == capture && tap != null) {
+                //  The capture socket is writable again, flush the pending captured messages.
+                tap.drain(capture, stats);
+                rc = true;
+            }
+            if (tap != null && capture != null) {
+                tapped(poller);
+            }
+            return rc;
+        }
+
+        // transfers a message while measuring it
+        private boolean flow(Plug splug, Socket source, Plug dplug, Socket destination)
+        {
+            final long start = System.nanoTime();
+            final boolean rc;
+            if (transport instanceof MeteredPump) {
+                rc = ((MeteredPump) transport).flow(splug, source, capture, dplug, destination, stats);
+            }
+            else {
+                rc = transport.flow(splug, source, capture, dplug, destination);
+                stats.meter(dplug).message(rc);
+            }
+            if (rc) {
+                stats.latency().record(System.nanoTime() - start);
+            }
+            return rc;
+        }
+
+        // polls the capture socket for writing only while captured messages are waiting in the tap
+        private void tapped(ZPoller poller)
+        {
+            final boolean pending = tap.pending() > 0;
+            if (pending && !draining) {
+                draining = poller.register(capture, ZPoller.POLLOUT);
+            }
+            else if (!pending && draining) {
+                poller.unregister(capture);
+                draining = false;
             }
-            return false;
         }
 
         @Override
@@ -969,65 +1712,256 @@ public class ZProxy
         public boolean destroyed(ZContext ctx, Socket pipe, ZPoller poller)
         {
             if (capture != null) {
+                if (draining) {
+                    poller.unregister(capture);
+                    draining = false;
+                }
                 ctx.destroySocket(capture);
             }
+            if (tap != null) {
+                // the capture socket may be re-created by a cold restart
+                tap.reset();
+            }
             state.alive = false;
-            if (!state.restart) {
+            if (!state.restart && !reported) {
+                // the exit is reported only once, through the path of the failed command
                 status().send(pipe);
             }
             return state.restart;
         }
     }
 
-    /**
-     * A pump that reads a message as a whole before transmitting it.
-     * It offers a way to transform messages for capture and destination.
-     */
-    public static class ZPump implements Pump
+    // coordinates in background the workers of a parallel proxy, each one being a proxy on its own
+    private static final class ParallelActor extends ZActor.SimpleActor
     {
-        private static final Identity IDENTITY = new Identity();
+        // the states in order of precedence when aggregating the ones of the workers
+        private static final List<String> PRECEDENCE = Arrays.asList(EXITED, STOPPED, PAUSED, ALIVE, STARTED);
 
-        // the messages transformer
-        private final Transformer transformer;
+        // the nice name of the proxy
+        private final String name;
 
-        // transforms one message into another
-        public interface Transformer
-        {
-            /**
-             * Transforms a ZMsg into another ZMsg.
-             * Please note that this will be used during the message transfer,
-             * so lengthy operations will have a cost on performances by definition.
-             * If you return back another message than the one given in input, then this one has to be destroyed by you.
-             * @param msg the message to transform
-             * @param src the source plug
-             * @param dst the destination plug
-             * @return the transformed message
-             */
-            ZMsg transform(ZMsg msg, Plug src, Plug dst);
-        }
+        // the workers of the proxy
+        private final ZProxy[] workers;
 
-        private static class Identity implements Transformer
-        {
-            @Override
-            public ZMsg transform(ZMsg msg, Plug src, Plug dst)
-            {
-                return msg;
-            }
-        }
+        // the statistics shared by all the workers
+        private final Statistics stats;
 
-        public ZPump()
-        {
-            this(null);
-        }
+        // the typed control channel
+        private final Control control;
 
-        public ZPump(Transformer transformer)
+        // creates a new coordinator for the given number of workers
+        public ParallelActor(String name, int count, int id, Statistics stats, Control control)
         {
-            super();
-            this.transformer = transformer == null ? IDENTITY : transformer;
+            if (name == null) {
+                // default basic name
+                this.name = String.format("ZProxy-%sd", id);
+            }
+            else {
+                this.name = name;
+            }
+            this.workers = new ZProxy[count];
+            this.stats = stats;
+            this.control = control;
         }
 
         @Override
-        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination)
+        public String premiere(Socket pipe)
+        {
+            ZMsg reply = new ZMsg();
+            reply.add(ALIVE);
+            reply.send(pipe);
+
+            return name;
+        }
+
+        // creates the workers at the first start of the proxy, they will live until the exit
+        @Override
+        public List<Socket> createSockets(ZContext ctx, Object... args)
+        {
+            if (workers[0] == null) {
+                final Proxy provider = (Proxy) args[0];
+                for (int index = 0; index < workers.length; ++index) {
+                    // the shadow actor observes only the coordinator
+                    final List<Object> vars = new ArrayList<>(args.length);
+                    for (int idx = 1; idx < args.length; ++idx) {
+                        if (!(args[idx] instanceof Actor)) {
+                            vars.add(args[idx]);
+                        }
+                    }
+                    vars.add(new Worker(index, workers.length));
+
+                    workers[index] = new ZProxy(
+                                                ctx,
+                                                null,
+                                                provider,
+                                                stats,
+                                                new ZmqPump(),
+                                                name + "-" + index,
+                                                counter.incrementAndGet(),
+                                                null,
+                                                vars.toArray());
+                }
+            }
+            return Collections.emptyList();
+        }
+
+        // Process a control message by transmitting it to every worker
+        @Override
+        public boolean backstage(Socket pipe, ZPoller poller, int events)
+        {
+            String cmd = pipe.recvStr();
+            if (ZAgent.Channel.WAKEUP.equals(cmd)) {
+                control.commands.acknowledge();
+                Command command = control.commands.poll();
+                while (command != null) {
+                    final String[] statuses = new String[workers.length];
+                    for (int index = 0; index < workers.length; ++index) {
+                        statuses[index] = workers[index].command(command, true).name();
+                    }
+                    control.replies.offer(State.valueOf(aggregate(statuses)));
+                    command = control.commands.poll();
+                }
+                return true;
+            }
+            else if (RESTART.equals(cmd)) {
+                boolean hot = Boolean.parseBoolean(pipe.recvStr());
+                ZMsg cfg = hot ? ZMsg.recvMsg(pipe) : null;
+                for (ZProxy worker : workers) {
+                    worker.restart(cfg == null ? null : cfg.duplicate());
+                }
+                if (cfg != null) {
+                    cfg.destroy();
+                }
+                // the pipe will be refilled by the status command following the restart
+                return true;
+            }
+            else if (CONFIG.equals(cmd)) {
+                // all the workers share the same configuration, answer with the reply of the first one
+                ZMsg cfg = ZMsg.recvMsg(pipe);
+                ZMsg reply = null;
+                for (ZProxy worker : workers) {
+                    ZMsg rcvd = worker.configure(cfg.duplicate());
+                    if (reply == null) {
+                        reply = rcvd;
+                    }
+                    else if (rcvd != null) {
+                        rcvd.destroy();
+                    }
+                }
+                cfg.destroy();
+                if (reply == null) {
+                    reply = new ZMsg();
+                    reply.add(EXITED);
+                }
+                return reply.send(pipe);
+            }
+            else if (STATS.equals(cmd)) {
+                return stats.msg().send(pipe);
+            }
+            else if (EXIT.equals(cmd)) {
+                // the workers will be exited and the status sent at the end of the loop
+                return false;
+            }
+            final String[] statuses = new String[workers.length];
+            for (int index = 0; index < workers.length; ++index) {
+                statuses[index] = workers[index].command(cmd, true);
+                if (statuses[index].startsWith(ERROR)) {
+                    // rejected by every worker alike
+                    return pipe.send(statuses[index]);
+                }
+            }
+            return pipe.send(aggregate(statuses));
+        }
+
+        // the status of the proxy is the least advanced one of its workers
+        private String aggregate(String[] statuses)
+        {
+            int rank = PRECEDENCE.size() - 1;
+            for (String state : statuses) {
+                final int index = PRECEDENCE.indexOf(state);
+                if (index >= 0 && index < rank) {
+                    rank = index;
+                }
+            }
+            return PRECEDENCE.get(rank);
+        }
+
+        // called in the coordinator thread when it stopped, the workers are restarted by themselves.
+        @Override
+        public boolean destroyed(ZContext ctx, Socket pipe, ZPoller poller)
+        {
+            for (ZProxy worker : workers) {
+                if (worker != null) {
+                    worker.exit();
+                }
+            }
+            pipe.send(EXITED);
+            return false;
+        }
+    }
+
+    /**
+     * A pump that reads a message as a whole before transmitting it.
+     * It offers a way to transform messages for capture and destination.
+     */
+    public static class ZPump implements MeteredPump
+    {
+        private static final Identity IDENTITY = new Identity();
+
+        // the messages transformer
+        private final Transformer transformer;
+
+        // transforms one message into another
+        public interface Transformer
+        {
+            /**
+             * Transforms a ZMsg into another ZMsg.
+             * Please note that this will be used during the message transfer,
+             * so lengthy operations will have a cost on performances by definition.
+             * If you return back another message than the one given in input, then this one has to be destroyed by you.
+             * @param msg the message to transform
+             * @param src the source plug
+             * @param dst the destination plug
+             * @return the transformed message
+             */
+            ZMsg transform(ZMsg msg, Plug src, Plug dst);
+        }
+
+        private static class Identity implements Transformer
+        {
+            @Override
+            public ZMsg transform(ZMsg msg, Plug src, Plug dst)
+            {
+                return msg;
+            }
+        }
+
+        public ZPump()
+        {
+            this(null);
+        }
+
+        public ZPump(Transformer transformer)
+        {
+            super();
+            this.transformer = transformer == null ? IDENTITY : transformer;
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination)
+        {
+            return transfer(splug, source, capture, dplug, destination, null);
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination,
+                            Statistics stats)
+        {
+            return transfer(splug, source, capture, dplug, destination, stats);
+        }
+
+        private boolean transfer(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination,
+                                 Statistics stats)
         {
             boolean success;
 
@@ -1045,7 +1979,7 @@ public class ZProxy
 
                 //                boolean destroy = !msg.equals(cpt); // TODO ?? which one
                 boolean destroy = msg != cpt;
-                success = cpt.send(capture, destroy);
+                success = send(cpt, capture, destroy, stats == null ? null : stats.meter(Plug.CAPTURE));
                 if (!success) {
                     // not successful, but we can still try to send it to the destination
                 }
@@ -1053,26 +1987,56 @@ public class ZProxy
 
             ZMsg dst = transformer.transform(msg, splug, dplug);
             // we send the whole transformed message
-            success = dst.send(destination);
+            success = send(dst, destination, false, stats == null ? null : stats.meter(dplug));
 
             // finished
             msg.destroy();
 
             return success;
         }
+
+        // sends a message while measuring it if needed
+        private boolean send(ZMsg msg, Socket socket, boolean destroy, Meter meter)
+        {
+            if (meter == null) {
+                return msg.send(socket, destroy);
+            }
+            final int frames = msg.size();
+            final long size = msg.contentSize();
+            final long start = System.nanoTime();
+            final boolean success = msg.send(socket, destroy);
+            if (success) {
+                meter.sent(frames, size, System.nanoTime() - start);
+            }
+            meter.message(success);
+            return success;
+        }
     }
 
     /**
      * A specialized transport for better transmission purposes
      * that will send each packets individually instead of the whole message.
      */
-    private static final class ZmqPump implements Pump
+    private static final class ZmqPump implements MeteredPump
     {
-        // transfers each message as a whole by sending each packet received to the capture socket
         @Override
         public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination)
+        {
+            return transfer(source, capture, destination, null, null);
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination,
+                            Statistics stats)
+        {
+            return transfer(source, capture, destination, stats.meter(Plug.CAPTURE), stats.meter(dplug));
+        }
+
+        // transfers each message as a whole by sending each packet received to the capture socket
+        private boolean transfer(Socket source, Socket capture, Socket destination, Meter cmeter, Meter dmeter)
         {
             boolean rc;
+            boolean captured = true;
 
             ASocket src = source.base();
             ASocket dst = destination.base();
@@ -1084,21 +2048,30 @@ public class ZProxy
                 AMsg msg = src.recv(0);
 
                 if (msg == null) {
-                    return false;
+                    return failed(dmeter);
                 }
 
                 long more = src.getSocketOpt(ZMQ.RCVMORE);
 
                 if (more < 0) {
-                    return false;
+                    return failed(dmeter);
                 }
 
+                final int size = msg.size();
+                long start = dmeter == null ? 0 : System.nanoTime();
+
                 //  Copy message to capture socket if any packet
                 if (cpt != null) {
                     AMsg ctrl = msg.copy();
                     rc = cpt.send(ctrl, more > 0 ? ZMQ.SNDMORE : 0);
                     if (!rc) {
                         // not successful, but we can still try to send it to the destination
+                        captured = false;
+                    }
+                    else if (cmeter != null) {
+                        final long end = System.nanoTime();
+                        cmeter.sent(1, size, end - start);
+                        start = end;
                     }
                 }
 
@@ -1106,13 +2079,1233 @@ public class ZProxy
                 rc = dst.send(msg, more > 0 ? ZMQ.SNDMORE : 0);
 
                 if (!rc) {
-                    return false;
+                    return failed(dmeter);
+                }
+                if (dmeter != null) {
+                    dmeter.sent(1, size, System.nanoTime() - start);
+                }
+                if (more == 0) {
+                    break;
+                }
+            }
+            if (dmeter != null) {
+                dmeter.message(true);
+                if (cpt != null) {
+                    cmeter.message(captured);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A low-level transport routing the messages of the frontend to one of the peers of a ROUTER backend,
+     * according to the first frame of the message, with the same semantics as the prefix matching of a SUB socket.
+     * <p>
+     * Each route associates a topic prefix to the routing id of a backend peer,
+     * the longest matching prefix is chosen and the message is sent to the backend preceded by this routing id.
+     * Messages matching no route are dropped and counted as failures of the backend.
+     * In the reverse direction, the routing id of the backend peer is removed before forwarding the message to the frontend.
+     * <p>
+     * The routes can be updated at runtime with the {@link ZProxy#configure(ZMsg) CONFIG} command and the following messages:
+     * <ul>
+     * <li>ROUTE ADD &lt;topic&gt; &lt;routing-id&gt;: adds or replaces a route
+     * <li>ROUTE REMOVE &lt;topic&gt;: removes a route
+     * <li>ROUTE CLEAR: removes all the routes
+     * </ul>
+     * The reply is made of OK followed by the number of routes, or ERROR followed by the reason.
+     */
+    public static final class RoutingPump implements MeteredPump, ConfigurablePump
+    {
+        public static final String ROUTE  = "ROUTE";
+        public static final String ADD    = "ADD";
+        public static final String REMOVE = "REMOVE";
+        public static final String CLEAR  = "CLEAR";
+
+        private static final String OK    = "OK";
+        private static final String ERROR = "ERROR";
+
+        // the routes of the messages, only modified in the proxy thread once started
+        private final Routes routes;
+
+        public RoutingPump()
+        {
+            this(new Routes());
+        }
+
+        /**
+         * Creates a new routing pump.
+         *
+         * @param routes the initial routes. Once the proxy is started, they shall be modified only via the CONFIG command.
+         */
+        public RoutingPump(Routes routes)
+        {
+            assert (routes != null);
+            this.routes = routes;
+        }
+
+        @Override
+        public boolean configure(Socket pipe, ZMsg cfg)
+        {
+            final ZFrame first = cfg.peekFirst();
+            if (first == null || !first.streq(ROUTE)) {
+                return false;
+            }
+            cfg.pop().destroy();
+            final String action = cfg.popString();
+            final ZMsg reply = new ZMsg();
+            if (ADD.equals(action) && cfg.size() == 2) {
+                final byte[] topic = cfg.pop().getData();
+                routes.put(topic, cfg.pop().getData());
+                reply.add(OK);
+            }
+            else if (REMOVE.equals(action) && cfg.size() == 1) {
+                reply.add(routes.remove(cfg.pop().getData()) ? OK : ERROR);
+            }
+            else if (CLEAR.equals(action)) {
+                routes.clear();
+                reply.add(OK);
+            }
+            else {
+                reply.add(ERROR);
+                reply.add("Invalid route command " + action);
+            }
+            if (reply.size() == 1) {
+                reply.add(Integer.toString(routes.size()));
+            }
+            return reply.send(pipe);
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination)
+        {
+            return transfer(source, capture, dplug, destination, null);
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination,
+                            Statistics stats)
+        {
+            return transfer(source, capture, dplug, destination, stats.meter(dplug));
+        }
+
+        private boolean transfer(Socket source, Socket capture, Plug dplug, Socket destination, Meter meter)
+        {
+            ASocket src = source.base();
+            ASocket dst = destination.base();
+            ASocket cpt = capture == null ? null : capture.base();
+
+            AMsg msg = src.recv(0);
+            if (msg == null) {
+                return failed(meter);
+            }
+            long more = src.getSocketOpt(ZMQ.RCVMORE);
+            if (more < 0) {
+                return failed(meter);
+            }
+            if (dplug == Plug.BACK) {
+                // route the request to the backend peer
+                final byte[] target = routes.match(msg.data());
+                if (target == null || !destination.send(target, ZMQ.SNDMORE)) {
+                    // unroutable message
+                    return discard(src, more, meter);
+                }
+            }
+            else {
+                // remove the routing id of the backend peer
+                if (more == 0) {
+                    return discard(src, more, meter);
+                }
+                msg = src.recv(0);
+                if (msg == null) {
+                    return failed(meter);
+                }
+                more = src.getSocketOpt(ZMQ.RCVMORE);
+                if (more < 0) {
+                    return failed(meter);
+                }
+            }
+
+            // we transfer the remaining of the message
+            while (true) {
+                final int size = msg.size();
+                final int flags = more > 0 ? ZMQ.SNDMORE : 0;
+
+                //  Copy message to capture socket if any packet
+                if (cpt != null) {
+                    cpt.send(msg.copy(), flags);
+                }
+
+                final long start = meter == null ? 0 : System.nanoTime();
+                if (!dst.send(msg, flags)) {
+                    return failed(meter);
+                }
+                if (meter != null) {
+                    meter.sent(1, size, System.nanoTime() - start);
                 }
                 if (more == 0) {
                     break;
                 }
+                msg = src.recv(0);
+                if (msg == null) {
+                    return failed(meter);
+                }
+                more = src.getSocketOpt(ZMQ.RCVMORE);
+                if (more < 0) {
+                    return failed(meter);
+                }
+            }
+            if (meter != null) {
+                meter.message(true);
             }
             return true;
         }
+
+        // drops the remaining frames of a message that cannot be forwarded
+        private boolean discard(ASocket src, long more, Meter meter)
+        {
+            while (more > 0) {
+                if (src.recv(0) == null) {
+                    return failed(meter);
+                }
+                more = src.getSocketOpt(ZMQ.RCVMORE);
+            }
+            failed(meter);
+            // the proxy can continue
+            return more == 0;
+        }
+
+        /**
+         * A compressed prefix trie of topics, associating each topic with the routing id of a destination.
+         * The lookup of the longest matching prefix is done in O(length of the topic).
+         * This class is not thread-safe.
+         */
+        public static final class Routes
+        {
+            private static final Node[] LEAF = new Node[0];
+
+            // a node of the trie, reached from its parent by its label
+            private static final class Node
+            {
+                private byte[] label;
+                private byte[] destination;
+                private Node[] children = LEAF;
+
+                private Node(byte[] label, byte[] destination)
+                {
+                    this.label = label;
+                    this.destination = destination;
+                }
+
+                // the child whose label starts with the given byte
+                private Node child(byte first)
+                {
+                    for (Node child : children) {
+                        if (child.label[0] == first) {
+                            return child;
+                        }
+                    }
+                    return null;
+                }
+
+                private void add(Node child)
+                {
+                    children = Arrays.copyOf(children, children.length + 1);
+                    children[children.length - 1] = child;
+                }
+
+                private void replace(Node child, Node by)
+                {
+                    for (int index = 0; index < children.length; ++index) {
+                        if (children[index] == child) {
+                            children[index] = by;
+                            return;
+                        }
+                    }
+                }
+
+                private void remove(Node child)
+                {
+                    final Node[] remaining = new Node[children.length - 1];
+                    int idx = 0;
+                    for (Node node : children) {
+                        if (node != child) {
+                            remaining[idx++] = node;
+                        }
+                    }
+                    children = remaining;
+                }
+            }
+
+            private final Node root = new Node(new byte[0], null);
+            private int        size;
+
+            /**
+             * Adds or replaces a route.
+             *
+             * @param topic        the prefix of the first frame of the messages to route. Empty to match all messages.
+             * @param destination  the routing id of the destination.
+             */
+            public void put(byte[] topic, byte[] destination)
+            {
+                assert (topic != null);
+                assert (destination != null);
+                Node node = root;
+                int pos = 0;
+                while (pos < topic.length) {
+                    Node child = node.child(topic[pos]);
+                    if (child == null) {
+                        node.add(new Node(Arrays.copyOfRange(topic, pos, topic.length), destination));
+                        ++size;
+                        return;
+                    }
+                    final int common = common(child.label, topic, pos);
+                    if (common < child.label.length) {
+                        // split the edge
+                        final Node middle = new Node(Arrays.copyOf(child.label, common), null);
+                        child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+                        middle.add(child);
+                        node.replace(child, middle);
+                        child = middle;
+                    }
+                    pos += common;
+                    node = child;
+                }
+                if (node.destination == null) {
+                    ++size;
+                }
+                node.destination = destination;
+            }
+
+            /**
+             * Removes a route.
+             *
+             * @param topic the exact topic of the route.
+             * @return true if the route was removed, false if there was no such route.
+             */
+            public boolean remove(byte[] topic)
+            {
+                final List<Node> path = new ArrayList<>();
+                Node node = root;
+                path.add(node);
+                int pos = 0;
+                while (pos < topic.length) {
+                    final Node child = node.child(topic[pos]);
+                    if (child == null || common(child.label, topic, pos) < child.label.length) {
+                        return false;
+                    }
+                    pos += child.label.length;
+                    node = child;
+                    path.add(node);
+                }
+                if (node.destination == null) {
+                    return false;
+                }
+                node.destination = null;
+                --size;
+                // prune and compress the nodes left without destination on the way back up
+                for (int depth = path.size() - 1; depth > 0; --depth) {
+                    final Node current = path.get(depth);
+                    final Node parent = path.get(depth - 1);
+                    if (current.destination != null) {
+                        break;
+                    }
+                    if (current.children.length == 0) {
+                        parent.remove(current);
+                        continue;
+                    }
+                    if (current.children.length == 1) {
+                        // compress the path
+                        final Node child = current.children[0];
+                        final byte[] label = Arrays.copyOf(current.label, current.label.length + child.label.length);
+                        System.arraycopy(child.label, 0, label, current.label.length, child.label.length);
+                        child.label = label;
+                        parent.replace(current, child);
+                    }
+                    break;
+                }
+                return true;
+            }
+
+            /**
+             * Removes all the routes.
+             */
+            public void clear()
+            {
+                root.children = LEAF;
+                root.destination = null;
+                size = 0;
+            }
+
+            /**
+             * @return the number of routes.
+             */
+            public int size()
+            {
+                return size;
+            }
+
+            /**
+             * Finds the destination of the longest route matching the beginning of the given data.
+             *
+             * @param data the first frame of a message.
+             * @return the routing id of the destination, or null if no route matches.
+             */
+            public byte[] match(byte[] data)
+            {
+                Node node = root;
+                byte[] found = root.destination;
+                int pos = 0;
+                while (pos < data.length) {
+                    node = node.child(data[pos]);
+                    if (node == null || data.length - pos < node.label.length
+                            || common(node.label, data, pos) < node.label.length) {
+                        break;
+                    }
+                    pos += node.label.length;
+                    if (node.destination != null) {
+                        found = node.destination;
+                    }
+                }
+                return found;
+            }
+
+            // the length of the common prefix between a label and the data starting at the given position
+            private static int common(byte[] label, byte[] data, int pos)
+            {
+                final int max = Math.min(label.length, data.length - pos);
+                int idx = 0;
+                while (idx < max && label[idx] == data[pos + idx]) {
+                    ++idx;
+                }
+                return idx;
+            }
+        }
+    }
+
+    /**
+     * A low-level transport limiting the rate of messages and bytes read from each plug, with token buckets.
+     * <p>
+     * When the tokens of a plug are exhausted, the proxy stops polling the socket of this plug until the tokens
+     * are refilled, letting the high-water marks of the sockets apply the backpressure instead of sleeping.
+     * <p>
+     * The limits can be changed at runtime with the {@link ZProxy#command(String, boolean) command}
+     * built by {@link #command(Plug, long, long, long, long)}, an invalid one being replied with an
+     * {@link ZProxy#ERROR ERROR}.
+     */
+    public static final class ShapingPump implements MeteredPump
+    {
+        public static final String SHAPE = "SHAPE";
+
+        // a token bucket, the tokens can go in debt up to the size of the last message
+        private static final class Bucket
+        {
+            private double rate;   // the tokens per nanosecond, 0 for no limit
+            private double burst;  // the maximum number of tokens
+            private double tokens; // the available tokens
+            private long   refill; // the time of the last refill
+
+            private void limit(long perSecond, long burst)
+            {
+                this.rate = perSecond / (double) TimeUnit.SECONDS.toNanos(1);
+                this.burst = Math.max(1, burst);
+                this.tokens = this.burst;
+                this.refill = System.nanoTime();
+            }
+
+            private void consume(long amount)
+            {
+                if (rate > 0) {
+                    tokens -= amount;
+                }
+            }
+
+            // the time in nanoseconds before tokens are available again
+            private long delay()
+            {
+                if (rate == 0) {
+                    return 0;
+                }
+                final long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - refill) * rate);
+                refill = now;
+                if (tokens > 0) {
+                    return 0;
+                }
+                return (long) Math.ceil((1 - tokens) / rate);
+            }
+        }
+
+        // buckets for messages and bytes of each plug
+        private final Bucket[] messages = new Bucket[Plug.values().length];
+        private final Bucket[] bytes    = new Bucket[Plug.values().length];
+
+        /**
+         * Creates a new shaping pump without any limit.
+         */
+        public ShapingPump()
+        {
+            for (int index = 0; index < messages.length; ++index) {
+                messages[index] = new Bucket();
+                bytes[index] = new Bucket();
+            }
+        }
+
+        /**
+         * Limits the traffic read from a plug.
+         * Shall be called before the start of the proxy, afterwards use the {@link #command(Plug, long, long, long, long) command}.
+         *
+         * @param plug          the source plug to limit.
+         * @param messageRate   the maximum number of messages per second, 0 for no limit.
+         * @param byteRate      the maximum number of bytes per second, 0 for no limit.
+         * @param messageBurst  the maximum number of messages read at once.
+         * @param byteBurst     the maximum number of bytes read at once.
+         * @return this pump.
+         */
+        public ShapingPump limit(Plug plug, long messageRate, long byteRate, long messageBurst, long byteBurst)
+        {
+            assert (messageRate >= 0);
+            assert (byteRate >= 0);
+            messages[plug.ordinal()].limit(messageRate, messageBurst);
+            bytes[plug.ordinal()].limit(byteRate, byteBurst);
+            return this;
+        }
+
+        /**
+         * Builds the command changing the limits of a running proxy.
+         *
+         * @param plug          the source plug to limit.
+         * @param messageRate   the maximum number of messages per second, 0 for no limit.
+         * @param byteRate      the maximum number of bytes per second, 0 for no limit.
+         * @param messageBurst  the maximum number of messages read at once.
+         * @param byteBurst     the maximum number of bytes read at once.
+         * @return the command to send with {@link ZProxy#command(String, boolean)}.
+         */
+        public static String command(Plug plug, long messageRate, long byteRate, long messageBurst, long byteBurst)
+        {
+            return String.format(
+                                 "%s %s %d %d %d %d",
+                                 SHAPE,
+                                 plug.name(),
+                                 messageRate,
+                                 byteRate,
+                                 messageBurst,
+                                 byteBurst);
+        }
+
+        // is it a shaping command?
+        private static boolean shaping(String cmd)
+        {
+            return cmd != null && cmd.startsWith(SHAPE + ' ');
+        }
+
+        // handles a shaping command in the proxy thread, returns false if invalid
+        private boolean command(String cmd)
+        {
+            final String[] parts = cmd.split(" ");
+            if (parts.length != 6) {
+                return false;
+            }
+            try {
+                final long messageRate = Long.parseLong(parts[2]);
+                final long byteRate = Long.parseLong(parts[3]);
+                if (messageRate < 0 || byteRate < 0) {
+                    return false;
+                }
+                limit(
+                      Plug.valueOf(parts[1]),
+                      messageRate,
+                      byteRate,
+                      Long.parseLong(parts[4]),
+                      Long.parseLong(parts[5]));
+                return true;
+            }
+            catch (IllegalArgumentException e) {
+                // unknown plug or not a number
+                return false;
+            }
+        }
+
+        // the time in nanoseconds before the plug can be read again, 0 if it can be read right now
+        private long delay(Plug plug)
+        {
+            return Math.max(messages[plug.ordinal()].delay(), bytes[plug.ordinal()].delay());
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination)
+        {
+            return transfer(splug, source, capture, destination, null, null);
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination,
+                            Statistics stats)
+        {
+            return transfer(splug, source, capture, destination, stats.meter(Plug.CAPTURE), stats.meter(dplug));
+        }
+
+        private boolean transfer(Plug splug, Socket source, Socket capture, Socket destination, Meter cmeter,
+                                 Meter dmeter)
+        {
+            ASocket src = source.base();
+            ASocket dst = destination.base();
+            ASocket cpt = capture == null ? null : capture.base();
+
+            long read = 0;
+            messages[splug.ordinal()].consume(1);
+
+            // we transfer the whole message
+            while (true) {
+                AMsg msg = src.recv(0);
+                if (msg == null) {
+                    break;
+                }
+                long more = src.getSocketOpt(ZMQ.RCVMORE);
+                if (more < 0) {
+                    break;
+                }
+                final int size = msg.size();
+                final int flags = more > 0 ? ZMQ.SNDMORE : 0;
+                read += size;
+
+                //  Copy message to capture socket if any packet
+                if (cpt != null && cpt.send(msg.copy(), flags) && cmeter != null) {
+                    cmeter.sent(1, size, 0);
+                }
+
+                final long start = dmeter == null ? 0 : System.nanoTime();
+                if (!dst.send(msg, flags)) {
+                    break;
+                }
+                if (dmeter != null) {
+                    dmeter.sent(1, size, System.nanoTime() - start);
+                }
+                if (more == 0) {
+                    bytes[splug.ordinal()].consume(read);
+                    if (dmeter != null) {
+                        dmeter.message(true);
+                    }
+                    return true;
+                }
+            }
+            bytes[splug.ordinal()].consume(read);
+            return failed(dmeter);
+        }
+    }
+
+    /**
+     * A low-level transport recording every message crossing the proxy in a binary stream,
+     * to be re-injected later by a {@link Replayer}.
+     * <p>
+     * The stream starts with the {@link #MAGIC} header, then each message is written as:
+     * <ul>
+     * <li>the ordinal of the plug where it was received (byte)
+     * <li>the time of its reception in nanoseconds since the start of the recording (long)
+     * <li>the message itself, in the {@link ZMsg#save(ZMsg, DataOutputStream) format of ZMsg}
+     * </ul>
+     * The recording is performed in the proxy thread, a buffered stream is recommended.
+     * A failure of the stream stops the recording but never the transfers.
+     */
+    public static final class RecordingPump implements MeteredPump
+    {
+        /**
+         * Header of the recorded streams.
+         */
+        public static final int MAGIC = 0x5a505231; // ZPR1
+
+        private final DataOutputStream out;
+
+        // the frames of the message being transferred
+        private final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        private final DataOutputStream      buffer = new DataOutputStream(frames);
+
+        private long        origin;
+        private long        recorded;
+        private IOException error;
+
+        public RecordingPump(DataOutputStream out)
+        {
+            assert (out != null);
+            this.out = out;
+        }
+
+        /**
+         * @return the number of recorded messages.
+         */
+        public long recorded()
+        {
+            return recorded;
+        }
+
+        /**
+         * @return the failure that stopped the recording, null if none.
+         */
+        public IOException error()
+        {
+            return error;
+        }
+
+        /**
+         * Flushes the recording.
+         * Shall be called once the proxy is stopped.
+         *
+         * @return true if the whole traffic has been recorded, otherwise false.
+         */
+        public boolean flush()
+        {
+            if (error == null) {
+                try {
+                    out.flush();
+                }
+                catch (IOException e) {
+                    error = e;
+                }
+            }
+            return error == null;
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination)
+        {
+            return transfer(splug, source, capture, destination, null, null);
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination,
+                            Statistics stats)
+        {
+            return transfer(splug, source, capture, destination, stats.meter(Plug.CAPTURE), stats.meter(dplug));
+        }
+
+        private boolean transfer(Plug splug, Socket source, Socket capture, Socket destination, Meter cmeter,
+                                 Meter dmeter)
+        {
+            ASocket src = source.base();
+            ASocket dst = destination.base();
+            ASocket cpt = capture == null ? null : capture.base();
+
+            final long now = System.nanoTime();
+            int count = 0;
+            frames.reset();
+
+            // we transfer the whole message
+            while (true) {
+                AMsg msg = src.recv(0);
+                if (msg == null) {
+                    break;
+                }
+                long more = src.getSocketOpt(ZMQ.RCVMORE);
+                if (more < 0) {
+                    break;
+                }
+                final int size = msg.size();
+                final int flags = more > 0 ? ZMQ.SNDMORE : 0;
+
+                if (error == null) {
+                    ++count;
+                    buffer(msg);
+                }
+                //  Copy message to capture socket if any packet
+                if (cpt != null && cpt.send(msg.copy(), flags) && cmeter != null) {
+                    cmeter.sent(1, size, 0);
+                }
+
+                final long start = dmeter == null ? 0 : System.nanoTime();
+                if (!dst.send(msg, flags)) {
+                    break;
+                }
+                if (dmeter != null) {
+                    dmeter.sent(1, size, System.nanoTime() - start);
+                }
+                if (more == 0) {
+                    record(now, splug, count);
+                    if (dmeter != null) {
+                        dmeter.message(true);
+                    }
+                    return true;
+                }
+            }
+            return failed(dmeter);
+        }
+
+        // keeps the frame until the whole message is received
+        private void buffer(AMsg msg)
+        {
+            try {
+                final byte[] data = msg.data();
+                buffer.writeInt(data.length);
+                buffer.write(data);
+            }
+            catch (IOException e) {
+                error = e;
+            }
+        }
+
+        // writes the whole message in the recording
+        private void record(long now, Plug plug, int count)
+        {
+            if (error != null) {
+                return;
+            }
+            try {
+                if (recorded == 0) {
+                    origin = now;
+                    out.writeInt(MAGIC);
+                }
+                out.writeByte(plug.ordinal());
+                out.writeLong(now - origin);
+                out.writeInt(count);
+                frames.writeTo(out);
+                ++recorded;
+            }
+            catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Re-injects into a socket the messages recorded by a {@link RecordingPump}.
+     * <p>
+     * The messages can be replayed at their original speed, faster or slower with a speed factor,
+     * or as fast as possible with a speed of 0.
+     * The replay is performed in the calling thread.
+     */
+    public static final class Replayer
+    {
+        /**
+         * A recorded message.
+         */
+        public static final class Record
+        {
+            /**
+             * The time of the reception, in nanoseconds since the start of the recording.
+             */
+            public final long time;
+            /**
+             * The plug where the message was received.
+             */
+            public final Plug plug;
+            /**
+             * The message itself.
+             */
+            public final ZMsg msg;
+
+            private Record(long time, Plug plug, ZMsg msg)
+            {
+                this.time = time;
+                this.plug = plug;
+                this.msg = msg;
+            }
+        }
+
+        private final DataInputStream in;
+        private boolean               started;
+
+        public Replayer(DataInputStream in)
+        {
+            assert (in != null);
+            this.in = in;
+        }
+
+        /**
+         * Reads the next recorded message.
+         *
+         * @return the next record, or null at the end of the recording.
+         * @throws IOException if the recording is invalid or cannot be read.
+         */
+        public Record next() throws IOException
+        {
+            if (!started) {
+                started = true;
+                try {
+                    if (in.readInt() != RecordingPump.MAGIC) {
+                        throw new IOException("Not a ZProxy recording");
+                    }
+                }
+                catch (EOFException e) {
+                    // empty recording
+                    return null;
+                }
+            }
+            final int ordinal = in.read();
+            if (ordinal < 0) {
+                return null;
+            }
+            if (ordinal >= Plug.values().length) {
+                throw new IOException("Corrupted ZProxy recording");
+            }
+            final long time = in.readLong();
+            final ZMsg msg = ZMsg.load(in);
+            if (msg == null) {
+                throw new EOFException("Truncated ZProxy recording");
+            }
+            return new Record(time, Plug.values()[ordinal], msg);
+        }
+
+        /**
+         * Replays all the recorded messages received from the given plug.
+         *
+         * @param target    the socket where to send the messages.
+         * @param plug      the plug of the messages to replay, null for all of them.
+         * @param speed     the speed factor compared to the original one, 0 for as fast as possible.
+         * @return the number of replayed messages.
+         * @throws IOException if the recording is invalid or cannot be read.
+         */
+        public long replay(Socket target, Plug plug, double speed) throws IOException
+        {
+            assert (speed >= 0);
+            long replayed = 0;
+            long origin = -1;
+            long start = 0;
+
+            Record record = next();
+            while (record != null) {
+                if (plug == null || plug == record.plug) {
+                    if (origin < 0) {
+                        origin = record.time;
+                        start = System.nanoTime();
+                    }
+                    if (speed > 0) {
+                        final long due = start + (long) ((record.time - origin) / speed);
+                        long delay = due - System.nanoTime();
+                        while (delay > 0) {
+                            LockSupport.parkNanos(delay);
+                            delay = due - System.nanoTime();
+                        }
+                    }
+                    if (!record.msg.send(target)) {
+                        break;
+                    }
+                    ++replayed;
+                }
+                record = next();
+            }
+            return replayed;
+        }
+    }
+
+    // records a failed transfer
+    private static boolean failed(Meter meter)
+    {
+        if (meter != null) {
+            meter.message(false);
+        }
+        return false;
+    }
+
+    /**
+     * A bounded ring of captured messages, decoupling the capture socket from the live path of the proxy.
+     * <p>
+     * Messages are copied in the ring while being forwarded,
+     * and the ring is flushed to the capture socket only when this one is writable,
+     * so that a slow capture consumer never blocks nor slows down the proxy.
+     * When the ring is full, messages are dropped according to the chosen {@link Drop policy}.
+     * <p>
+     * The ring is filled and drained by the proxy thread, the counters can be read from any thread.
+     */
+    public static final class Tap
+    {
+        /**
+         * What to drop when the capture cannot keep up with the traffic.
+         */
+        public enum Drop
+        {
+            NEWEST, // drops the incoming messages when the ring is full.
+            OLDEST, // drops the oldest pending messages when the ring is full.
+            SAMPLE  // captures only one message out of N, then drops the incoming messages when the ring is full.
+        }
+
+        // the captured messages, each slot being reused for all the frames of one message
+        private final AMsg[][] ring;
+        // the number of frames in each slot
+        private final int[] frames;
+        // the mask used to compute the index of a slot
+        private final int mask;
+
+        private final Drop policy;
+        // one message out of sampling is captured
+        private final int sampling;
+
+        // the sequence of the next message to drain
+        private long head;
+        // the sequence of the next message to fill
+        private long tail;
+        // the number of frames of the head message already sent to the capture socket
+        private int sent;
+        // is a message currently copied in the ring ?
+        private boolean filling;
+        // the number of messages offered to the tap, used for sampling
+        private long offered;
+
+        private final AtomicLong captured = new AtomicLong();
+        private final AtomicLong dropped  = new AtomicLong();
+
+        /**
+         * Creates a new tap.
+         *
+         * @param capacity  the maximum number of pending messages, rounded up to the next power of 2.
+         * @param policy    the drop policy when the ring is full. For {@link Drop#SAMPLE} one message out of 10 is captured.
+         */
+        public Tap(int capacity, Drop policy)
+        {
+            this(capacity, policy, 10);
+        }
+
+        /**
+         * Creates a new tap capturing one message out of the given sampling.
+         *
+         * @param capacity  the maximum number of pending messages, rounded up to the next power of 2.
+         * @param sampling  the sampling rate, capturing one message out of this number.
+         */
+        public Tap(int capacity, int sampling)
+        {
+            this(capacity, Drop.SAMPLE, sampling);
+        }
+
+        private Tap(int capacity, Drop policy, int sampling)
+        {
+            assert (capacity > 0);
+            assert (policy != null);
+            assert (sampling > 0);
+            int size = Integer.highestOneBit(capacity);
+            if (size < capacity) {
+                size <<= 1;
+            }
+            this.ring = new AMsg[size][];
+            this.frames = new int[size];
+            this.mask = size - 1;
+            this.policy = policy;
+            this.sampling = policy == Drop.SAMPLE ? sampling : 1;
+        }
+
+        /**
+         * @return the number of messages sent to the capture socket.
+         */
+        public long captured()
+        {
+            return captured.get();
+        }
+
+        /**
+         * @return the number of messages that were not captured, according to the drop policy.
+         */
+        public long dropped()
+        {
+            return dropped.get();
+        }
+
+        // the number of messages waiting to be sent to the capture socket
+        int pending()
+        {
+            return (int) (tail - head);
+        }
+
+        // starts the capture of a new message. Returns true if the frames of the message have to be added.
+        boolean open()
+        {
+            assert (!filling);
+            if (offered++ % sampling != 0) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (tail - head > mask) {
+                // ring is full
+                if (policy != Drop.OLDEST || sent > 0) {
+                    // a partially sent message cannot be dropped
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                clear(head++);
+                dropped.incrementAndGet();
+            }
+            frames[(int) (tail & mask)] = 0;
+            filling = true;
+            return true;
+        }
+
+        // adds a frame to the message being captured
+        void add(AMsg frame)
+        {
+            assert (filling);
+            final int index = (int) (tail & mask);
+            AMsg[] slot = ring[index];
+            final int count = frames[index];
+            if (slot == null || slot.length == count) {
+                slot = Arrays.copyOf(slot == null ? new AMsg[1] : slot, Math.max(1, count * 2));
+                ring[index] = slot;
+            }
+            slot[count] = frame;
+            frames[index] = count + 1;
+        }
+
+        // publishes the captured message
+        void close()
+        {
+            assert (filling);
+            filling = false;
+            ++tail;
+        }
+
+        // gives up the message being captured
+        void abort()
+        {
+            assert (filling);
+            filling = false;
+            clear(tail);
+        }
+
+        // sends as much pending messages as possible to the capture socket without blocking.
+        int drain(Socket capture, Statistics stats)
+        {
+            final ASocket cpt = capture.base();
+            final Meter meter = stats == null ? null : stats.meter(Plug.CAPTURE);
+            int drained = 0;
+            while (head < tail) {
+                final int index = (int) (head & mask);
+                final AMsg[] slot = ring[index];
+                final int count = frames[index];
+                while (sent < count) {
+                    final boolean more = sent < count - 1;
+                    final int size = slot[sent].size();
+                    if (!cpt.send(slot[sent], ZMQ.DONTWAIT | (more ? ZMQ.SNDMORE : 0))) {
+                        // capture is not writable, let's try later
+                        return drained;
+                    }
+                    slot[sent++] = null;
+                    if (meter != null) {
+                        meter.sent(1, size, 0);
+                    }
+                }
+                sent = 0;
+                frames[index] = 0;
+                ++head;
+                ++drained;
+                captured.incrementAndGet();
+                if (meter != null) {
+                    meter.message(true);
+                }
+            }
+            return drained;
+        }
+
+        // drops the pending messages of a capture socket about to be closed,
+        // so that the next capture socket starts with whole messages
+        void reset()
+        {
+            if (filling) {
+                abort();
+            }
+            while (head < tail) {
+                clear(head++);
+                dropped.incrementAndGet();
+            }
+            sent = 0;
+        }
+
+        // releases the frames of the given message
+        private void clear(long sequence)
+        {
+            final int index = (int) (sequence & mask);
+            final AMsg[] slot = ring[index];
+            if (slot != null) {
+                Arrays.fill(slot, null);
+            }
+            frames[index] = 0;
+        }
+    }
+
+    /**
+     * A low-level transport that captures the messages in a {@link Tap} instead of sending them directly to the capture socket.
+     * The proxy flushes the tap to the capture socket when this one is writable, so a slow capture consumer
+     * only results in dropped captured messages, never in a slower proxy.
+     */
+    public static final class TapPump implements MeteredPump
+    {
+        // the ring where captured messages wait to be sent
+        private final Tap tap;
+
+        public TapPump(Tap tap)
+        {
+            assert (tap != null);
+            this.tap = tap;
+        }
+
+        /**
+         * @return the tap where the messages are captured.
+         */
+        public Tap tap()
+        {
+            return tap;
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination)
+        {
+            return transfer(source, capture, dplug, destination, null);
+        }
+
+        @Override
+        public boolean flow(Plug splug, Socket source, Socket capture, Plug dplug, Socket destination,
+                            Statistics stats)
+        {
+            return transfer(source, capture, dplug, destination, stats);
+        }
+
+        private boolean transfer(Socket source, Socket capture, Plug dplug, Socket destination, Statistics stats)
+        {
+            ASocket src = source.base();
+            ASocket dst = destination.base();
+            final Meter meter = stats == null ? null : stats.meter(dplug);
+
+            // decide once for the whole message if it is captured
+            final boolean tapped = capture != null && tap.open();
+
+            // we transfer the whole message
+            while (true) {
+                // we read the packet
+                AMsg msg = src.recv(0);
+
+                if (msg == null) {
+                    break;
+                }
+
+                long more = src.getSocketOpt(ZMQ.RCVMORE);
+
+                if (more < 0) {
+                    break;
+                }
+
+                if (tapped) {
+                    tap.add(msg.copy());
+                }
+
+                final int size = msg.size();
+                final long start = meter == null ? 0 : System.nanoTime();
+                // we send the packet
+                if (!dst.send(msg, more > 0 ? ZMQ.SNDMORE : 0)) {
+                    break;
+                }
+                if (meter != null) {
+                    meter.sent(1, size, System.nanoTime() - start);
+                }
+                if (more == 0) {
+                    if (meter != null) {
+                        meter.message(true);
+                    }
+                    if (tapped) {
+                        tap.close();
+                        // opportunistic flush, the remaining ones will be sent when the capture is writable
+                        tap.drain(capture, stats);
+                    }
+                    return true;
+                }
+            }
+            if (tapped) {
+                tap.abort();
+            }
+            return failed(meter);
+        }
     }
 }
@@ -296,7 +296,8 @@ public class ZStar implements ZAgent
      * @param selector   the creator of the selector used on the Plateau.
      * @param fortune    the creator of stars on the Plateau
      * @param motdelafin the final word used to mark the end of the star. Null to disable this mechanism.
-     * @param bags       the optional arguments that will be passed to the distant star
+     * @param bags       the optional arguments that will be passed to the distant star.
+     *                   A {@link ZThread.Launcher} can be given to choose the thread where the star performs.
      */
     public ZStar(final ZContext context, final SelectorCreator selector, final Fortune fortune, String motdelafin,
             final Object... bags)
@@ -324,9 +325,10 @@ public class ZStar implements ZAgent
         this.context = chef;
         assert (this.context != null);
 
-        // retrieve the last optional set and entourage given in input
+        // retrieve the last optional set, entourage and launcher given in input
         Set set = null;
         Entourage entourage = null;
+        ZThread.Launcher launcher = ZThread.Launcher.threads();
         for (Object bag : bags) {
             if (bag instanceof Set) {
                 set = (Set) bag;
@@ -334,6 +336,9 @@ public class ZStar implements ZAgent
             if (bag instanceof Entourage) {
                 entourage = (Entourage) bag;
             }
+            if (bag instanceof ZThread.Launcher) {
+                launcher = (ZThread.Launcher) bag;
+            }
         }
         if (set == null) {
             set = new SimpleSet();
@@ -351,7 +356,7 @@ public class ZStar implements ZAgent
         train.addAll(Arrays.asList(bags));
 
         // now going to the plateau
-        Socket phone = ZThread.fork(chef, plateau, train.toArray());
+        Socket phone = ZThread.fork(launcher, chef, plateau, train.toArray());
 
         agent = agent(phone, motdelafin);
     }
@@ -1,5 +1,19 @@
 package org.zeromq;
 
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.zeromq.ZMQ.Error;
 import org.zeromq.ZMQ.Socket;
 
@@ -19,7 +33,106 @@ public class ZThread
         void run(Object[] args);
     }
 
-    private static class ShimThread extends Thread
+    /**
+     * Decides where the forked runnables are executed.
+     * <p>
+     * By default, each runnable gets its own platform thread.
+     * <br/>
+     * With {@link #virtual()}, each runnable gets its own virtual thread when the JVM supports them (Java 21+),
+     * so thousands of actors no longer cost thousands of platform threads and their stacks.
+     * <br/>
+     * With {@link #on(Executor)}, the runnables are executed by the given executor, for example a cached pool
+     * whose threads are reused between short-lived actors.
+     * As the runnables are blocking for their whole life, the executor SHALL provide one thread per running runnable.
+     */
+    public static final class Launcher
+    {
+        // the launcher of platform threads
+        private static final Launcher THREADS = new Launcher(null, null);
+
+        // the factory of virtual threads, null if not supported
+        private static final ThreadFactory VIRTUAL = virtualFactory();
+
+        private final Executor      executor;
+        private final ThreadFactory factory;
+
+        private Launcher(Executor executor, ThreadFactory factory)
+        {
+            this.executor = executor;
+            this.factory = factory;
+        }
+
+        /**
+         * @return a launcher starting a new platform thread for each runnable.
+         */
+        public static Launcher threads()
+        {
+            return THREADS;
+        }
+
+        /**
+         * @return a launcher starting a new virtual thread for each runnable if supported,
+         * otherwise a new platform thread.
+         */
+        public static Launcher virtual()
+        {
+            if (VIRTUAL == null) {
+                return THREADS;
+            }
+            return new Launcher(null, VIRTUAL);
+        }
+
+        /**
+         * @param executor the executor of the runnables
+         * @return a launcher executing each runnable with the given executor.
+         */
+        public static Launcher on(Executor executor)
+        {
+            assert (executor != null);
+            return new Launcher(executor, null);
+        }
+
+        /**
+         * @return true if the virtual threads are supported by the current JVM.
+         */
+        public static boolean isVirtualSupported()
+        {
+            return VIRTUAL != null;
+        }
+
+        private void launch(Runnable runnable, boolean daemon)
+        {
+            if (executor != null) {
+                executor.execute(runnable);
+            }
+            else if (factory != null) {
+                // virtual threads are always daemon ones
+                factory.newThread(runnable).start();
+            }
+            else {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(daemon);
+                thread.start();
+            }
+        }
+
+        // retrieves the factory of virtual threads by reflection, as this API is more recent than the supported java versions
+        private static ThreadFactory virtualFactory()
+        {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+                builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, "zthread-", 0L);
+                Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                return (ThreadFactory) factory.invoke(builder);
+            }
+            catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    private static class ShimThread implements Runnable
     {
         private ZContext          ctx;
         private IAttachedRunnable attachedRunnable;
@@ -72,11 +185,18 @@ public class ZThread
     //  pipe.
 
     public static void start(IDetachedRunnable runnable, Object... args)
+    {
+        start(Launcher.threads(), runnable, args);
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Create a detached thread with the given launcher.
+
+    public static void start(Launcher launcher, IDetachedRunnable runnable, Object... args)
     {
         //  Prepare child thread
-        Thread shim = new ShimThread(runnable, args);
-        shim.setDaemon(true);
-        shim.start();
+        ShimThread shim = new ShimThread(runnable, args);
+        launcher.launch(shim, true);
     }
 
     //  --------------------------------------------------------------------------
@@ -85,6 +205,15 @@ public class ZThread
     //  pipe becomes unreadable. Returns pipe, or null if there was an error.
 
     public static Socket fork(ZContext ctx, IAttachedRunnable runnable, Object... args)
+    {
+        return fork(Launcher.threads(), ctx, runnable, args);
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Create an attached thread with the given launcher.
+    //  Returns pipe, or null if there was an error.
+
+    public static Socket fork(Launcher launcher, ZContext ctx, IAttachedRunnable runnable, Object... args)
     {
         Socket pipe = ctx.createSocket(ZMQ.PAIR);
 
@@ -104,9 +233,231 @@ public class ZThread
         cpipe.connect(String.format("inproc://zctx-pipe-%d", pipe.hashCode()));
 
         //  Prepare child thread
-        Thread shim = new ShimThread(ccontext, runnable, args, cpipe);
-        shim.start();
+        ShimThread shim = new ShimThread(ccontext, runnable, args, cpipe);
+        launcher.launch(shim, false);
 
         return pipe;
     }
+
+    /**
+     * A pool of warm threads and pre-connected pipes for attached runnables.
+     * <p>
+     * Forking with a pool reuses an idle thread and an idle pair of pipes instead of creating them each time.
+     * <br/>
+     * Each runnable gets its own shadow context for the sockets it creates, destroyed at the end of the run,
+     * but the pipe given to the runnable belongs to the pool and SHALL NOT be closed by it.
+     * <br/>
+     * Once the runnable is finished, the parent SHALL {@link #release(Socket) release} the returned pipe
+     * instead of closing it, so that the pair of pipes is drained and made available for another fork.
+     */
+    public static final class Pool implements Closeable
+    {
+        private static final AtomicInteger counter = new AtomicInteger();
+
+        // a pair of connected pipes
+        private static final class Pipes
+        {
+            private final Socket parent;
+            private final Socket child;
+
+            // the number of sides still using the pipes
+            private final AtomicInteger owners = new AtomicInteger();
+
+            private Pipes(Socket parent, Socket child)
+            {
+                this.parent = parent;
+                this.child = child;
+            }
+        }
+
+        // the context of the parent pipes
+        private final ZContext ctx;
+        // the context of the child pipes, destroyed once the pool is closed and its runnables are done
+        private final ZContext shadow;
+        // has the shadow context been destroyed? guarded by the shadow context
+        private boolean ended;
+
+        private final ThreadPoolExecutor threads;
+
+        private final Queue<Pipes>       idle = new ConcurrentLinkedQueue<>();
+        private final Map<Socket, Pipes> used = new ConcurrentHashMap<>();
+
+        /**
+         * Creates a new pool.
+         *
+         * @param ctx   the context where the pipes are created. Not null.
+         * @param warm  the number of threads and pipes ready for use at any time.
+         */
+        public Pool(ZContext ctx, int warm)
+        {
+            assert (ctx != null);
+            assert (warm >= 0);
+            this.ctx = ctx;
+            this.shadow = ZContext.shadow(ctx);
+
+            final int id = counter.incrementAndGet();
+            this.threads = new ThreadPoolExecutor(
+                                                  warm,
+                                                  Integer.MAX_VALUE,
+                                                  60,
+                                                  TimeUnit.SECONDS,
+                                                  new SynchronousQueue<Runnable>(),
+                                                  new ThreadFactory()
+                                                  {
+                                                      private final AtomicInteger index = new AtomicInteger();
+
+                                                      @Override
+                                                      public Thread newThread(Runnable runnable)
+                                                      {
+                                                          Thread thread = new Thread(
+                                                                  runnable,
+                                                                  String.format(
+                                                                                "zthread-pool-%d-%d",
+                                                                                id,
+                                                                                index.incrementAndGet()));
+                                                          thread.setDaemon(true);
+                                                          return thread;
+                                                      }
+                                                  })
+            {
+                @Override
+                protected void terminated()
+                {
+                    // closed and the last runnable is done, the child pipes are not used anymore
+                    synchronized (shadow) {
+                        ended = true;
+                        shadow.destroy();
+                    }
+                }
+            };
+            threads.prestartAllCoreThreads();
+            for (int index = 0; index < warm; ++index) {
+                idle.add(connect());
+            }
+        }
+
+        //  --------------------------------------------------------------------------
+        //  Create an attached runnable on a warm thread. It gets a ctx and a PAIR
+        //  pipe back to its parent. It must monitor its pipe, and exit if the
+        //  pipe becomes unreadable. Returns pipe, or null if the pool is closed.
+
+        public Socket fork(IAttachedRunnable runnable, Object... args)
+        {
+            if (threads.isShutdown()) {
+                return null;
+            }
+            Pipes pipes = idle.poll();
+            if (pipes == null) {
+                pipes = connect();
+            }
+            pipes.owners.set(2);
+            used.put(pipes.parent, pipes);
+
+            final Pipes taken = pipes;
+            final ShimThread shim = new ShimThread(ZContext.shadow(ctx), runnable, args, pipes.child);
+            try {
+                threads.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            shim.run();
+                        }
+                        finally {
+                            recycle(taken);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                // closed concurrently, both sides give the pipes back
+                used.remove(pipes.parent);
+                pipes.owners.set(1);
+                recycle(pipes);
+                return null;
+            }
+            return pipes.parent;
+        }
+
+        /**
+         * Gives back a pipe returned by {@link #fork(IAttachedRunnable, Object...)}.
+         * The pipe SHALL NOT be used afterwards.
+         * If the pipe does not come from this pool, it is destroyed.
+         *
+         * @param pipe the pipe to release.
+         */
+        public void release(Socket pipe)
+        {
+            Pipes pipes = used.remove(pipe);
+            if (pipes == null) {
+                ctx.destroySocket(pipe);
+            }
+            else {
+                recycle(pipes);
+            }
+        }
+
+        /**
+         * Destroys the idle pipes and stops the idle threads.
+         * The running runnables are not interrupted, the resources of the pool are freed once they are done.
+         * Once closed, {@link #fork(IAttachedRunnable, Object...)} returns null.
+         */
+        @Override
+        public void close()
+        {
+            threads.shutdown();
+            Pipes pipes = idle.poll();
+            while (pipes != null) {
+                destroy(pipes);
+                pipes = idle.poll();
+            }
+        }
+
+        // destroys both pipes, the child one unless already destroyed with the shadow context
+        private void destroy(Pipes pipes)
+        {
+            ctx.destroySocket(pipes.parent);
+            synchronized (shadow) {
+                if (!ended) {
+                    shadow.destroySocket(pipes.child);
+                }
+            }
+        }
+
+        // creates a new pair of connected pipes
+        private Pipes connect()
+        {
+            Socket pipe = ctx.createSocket(ZMQ.PAIR);
+            String endpoint = String.format("inproc://zctx-pipe-pool-%d", pipe.hashCode());
+            pipe.bind(endpoint);
+
+            Socket cpipe = shadow.createSocket(ZMQ.PAIR);
+            cpipe.connect(endpoint);
+            return new Pipes(pipe, cpipe);
+        }
+
+        // resets the pipes once both sides are done with them
+        private void recycle(Pipes pipes)
+        {
+            if (pipes.owners.decrementAndGet() > 0) {
+                return;
+            }
+            if (threads.isShutdown()) {
+                destroy(pipes);
+                return;
+            }
+            drain(pipes.parent);
+            drain(pipes.child);
+            idle.offer(pipes);
+        }
+
+        // discards the messages left in the pipe
+        private static void drain(Socket pipe)
+        {
+            while (pipe.recv(ZMQ.DONTWAIT) != null) {
+                // discard
+            }
+        }
+    }
 }
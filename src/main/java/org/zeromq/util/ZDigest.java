@@ -2,6 +2,8 @@ package org.zeromq.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -10,6 +12,9 @@ import java.security.NoSuchAlgorithmException;
  */
 public class ZDigest
 {
+    // the size of the mapped windows of the files
+    private static final long WINDOW = 64 * 1024 * 1024;
+
     private final byte[] buffer;
 
     private final MessageDigest sha1;
@@ -48,6 +53,42 @@ public class ZDigest
         return this;
     }
 
+    /**
+     * Updates the digest with the remaining bytes of the buffer, consuming them.
+     * @param input the buffer to digest.
+     */
+    public ZDigest update(ByteBuffer input)
+    {
+        sha1.update(input);
+        return this;
+    }
+
+    /**
+     * Updates the digest with the content of the channel, from its current position.
+     * The small contents are read in the temp buffer, the bigger ones are memory-mapped by windows.
+     * @param input the channel to digest.
+     */
+    public ZDigest update(FileChannel input) throws IOException
+    {
+        final long size = input.size();
+        long position = input.position();
+        if (size - position <= buffer.length) {
+            final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            while (input.read(wrapped) > 0) {
+                // read till the end
+            }
+            wrapped.flip();
+            return update(wrapped);
+        }
+        while (position < size) {
+            final long length = Math.min(size - position, WINDOW);
+            update(input.map(FileChannel.MapMode.READ_ONLY, position, length));
+            position += length;
+        }
+        input.position(position);
+        return this;
+    }
+
     public ZDigest update(byte[] input)
     {
         return update(input, 0, input.length);
@@ -1,5 +1,7 @@
 package zmq.api;
 
+import java.nio.ByteBuffer;
+
 public interface AEvent
 {
     int event();
@@ -7,4 +9,18 @@ public interface AEvent
     Object argument();
 
     String address();
+
+    /**
+     * Receives the fields of a decoded monitor event, to let callers reuse their event objects.
+     */
+    public static interface Receiver
+    {
+        /**
+         * Called once per decoded event.
+         * @param event    the code of the event.
+         * @param argument the argument of the event, possibly null.
+         * @param address  the bytes of the address, valid only during this call.
+         */
+        void event(int event, Object argument, ByteBuffer address);
+    }
 }
@@ -39,4 +39,19 @@ public interface AProvider
     int versionPatch();
 
     ATimer timer();
+
+    /**
+     * Optionally implemented by the providers able to decode monitor events without allocating.
+     */
+    public static interface EventReader
+    {
+        /**
+         * Receives a monitor event and passes its fields to the receiver.
+         * @param socket   the monitor socket.
+         * @param flags    the flags to apply to the receive operation.
+         * @param receiver the receiver of the fields of the event.
+         * @return true if an event was received, false otherwise.
+         */
+        boolean read(ASocket socket, int flags, AEvent.Receiver receiver);
+    }
 }